@@ -0,0 +1,264 @@
+// FDT in an Evolutionary Environment
+// Scaling benchmark. Runs each game at a range of population sizes and
+// thread counts, and measures generations and agent-rounds per second,
+// parallel efficiency, peak memory and garbage collection time. Results are
+// written as CSV and can be compared against a stored baseline.
+//
+// Strong scaling keeps the population fixed as threads are added; weak
+// scaling (--weak) grows it with the threads, so each size is per thread.
+// Efficiency is relative to the same game and size with one thread.
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class Benchmark
+{
+   static final String[] GAMES = {"PrisonersDilemma", "NewcombsProblem", "KeynesianBeautyContest"};
+   static final long[] SIZES = {10_000, 100_000, 1_000_000};
+   static final double SECONDS = 2; // measured time per configuration
+   static final int WARMUP = 2; // generations run before measuring
+   static final double REGRESSION = 0.10; // slowdown flagged against a baseline
+   static final String HEADER = "game,agents,threads,generations,seconds,generations_per_s,"
+      + "agent_rounds_per_s,efficiency,peak_rss_mb,peak_heap_mb,gc_ms,gc_count";
+
+   // One measured configuration.
+   static class Result
+   {
+      String game;
+      long agents;
+      int threads, generations, gcCount;
+      double seconds, rate, agentRounds, efficiency, rssMb, heapMb, gcMs;
+
+      String csv()
+      {
+         return String.format(Locale.ROOT, "%s,%d,%d,%d,%.3f,%.4f,%.1f,%.3f,%.1f,%.1f,%.1f,%d",
+            game, agents, threads, generations, seconds, rate, agentRounds, efficiency,
+            rssMb, heapMb, gcMs, gcCount);
+      }
+   }
+
+   // Returns the process's peak resident set size in MB, or NaN where
+   // /proc isn't available.
+   static double peakRss()
+   {
+      try
+      {
+         for (String line : Files.readAllLines(Paths.get("/proc/self/status")))
+            if (line.startsWith("VmHWM:"))
+               return Long.parseLong(line.replaceAll("[^0-9]", "")) / 1024.0;
+      }
+      catch (IOException e)
+      {
+         // Not Linux.
+      }
+      return Double.NaN;
+   }
+
+   // Starts a new peak for the resident set size (Linux only) and for the
+   // heap's memory pools.
+   static void resetPeaks()
+   {
+      try
+      {
+         Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes());
+      }
+      catch (IOException | UnsupportedOperationException e)
+      {
+         // The peak RSS then covers the whole benchmark so far.
+      }
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+         if (pool.getType() == MemoryType.HEAP)
+            pool.resetPeakUsage();
+   }
+
+   static double peakHeap()
+   {
+      long bytes = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+         if (pool.getType() == MemoryType.HEAP)
+            bytes += pool.getPeakUsage().getUsed();
+      return bytes / (1024.0 * 1024.0);
+   }
+
+   static long[] gcTotals()
+   {
+      long time = 0, count = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+      {
+         time += Math.max(gc.getCollectionTime(), 0);
+         count += Math.max(gc.getCollectionCount(), 0);
+      }
+      return new long[] {time, count};
+   }
+
+   // Measures one configuration, or returns null if it would not fit in
+   // the heap.
+   static Result measure(Evolution template, String game, long agents, int threads,
+      double seconds)
+   {
+      if ((double)agents * Evolution.BYTES_PER_AGENT > 0.9 * Runtime.getRuntime().maxMemory()
+         || agents > Integer.MAX_VALUE)
+         return null;
+      System.gc();
+      resetPeaks();
+      long[] gcBefore = gcTotals();
+
+      Evolution engine = template.withAgents((int)agents);
+      engine.threads = threads;
+      engine.seed(1);
+      engine.start(engine.initialRates);
+      for (int i = 0; i < WARMUP; i++)
+         engine.generation();
+
+      int generations = 0;
+      long start = System.nanoTime(), elapsed;
+      do
+      {
+         engine.generation();
+         generations++;
+         elapsed = System.nanoTime() - start;
+      } while (elapsed < seconds * 1e9);
+      engine.stopThreads();
+
+      long[] gcAfter = gcTotals();
+      Result result = new Result();
+      result.game = game;
+      result.agents = agents;
+      result.threads = threads;
+      result.generations = generations;
+      result.seconds = elapsed / 1e9;
+      result.rate = generations / result.seconds;
+      result.agentRounds = result.rate * agents * engine.numRounds;
+      result.rssMb = peakRss();
+      result.heapMb = peakHeap();
+      result.gcMs = gcAfter[0] - gcBefore[0];
+      result.gcCount = (int)(gcAfter[1] - gcBefore[1]);
+      return result;
+   }
+
+   // Reads the rates of a stored results file, keyed by game, agents and threads.
+   static Map<String, Double> baseline(String file) throws IOException
+   {
+      Map<String, Double> rates = new HashMap<>();
+      List<String> lines = Files.readAllLines(Paths.get(file));
+      for (String line : lines.subList(1, lines.size()))
+      {
+         String[] fields = line.split(",");
+         rates.put(fields[0] + "," + fields[1] + "," + fields[2], Double.parseDouble(fields[5]));
+      }
+      return rates;
+   }
+
+   static long[] parseSizes(String list)
+   {
+      String[] fields = list.split(",");
+      long[] sizes = new long[fields.length];
+      for (int i = 0; i < fields.length; i++)
+         sizes[i] = (long)Double.parseDouble(fields[i]);
+      return sizes;
+   }
+
+   // Usage: java Benchmark [options]
+   // Options:
+   //    --games <a,b>      games to run (default: all three)
+   //    --sizes <n,m>      population sizes, such as 1e4,1e6 (per thread with --weak)
+   //    --threads <n,m>    thread counts (default: 1, 2, 4, ... up to all cores)
+   //    --weak             grow the population with the threads
+   //    --seconds <s>      time measured per configuration
+   //    --rounds <n>       rounds per generation, to make large sizes cheaper
+   //    --out <file>       write the results as CSV
+   //    --baseline <file>  compare against results written earlier
+   public static void main(String[] args) throws IOException
+   {
+      String arg = Evolution.option(args, "--games");
+      String[] games = (arg != null) ? arg.split(",") : GAMES;
+      arg = Evolution.option(args, "--sizes");
+      long[] sizes = (arg != null) ? parseSizes(arg) : SIZES;
+      List<Integer> threadCounts = new ArrayList<>();
+      arg = Evolution.option(args, "--threads");
+      if (arg != null)
+         for (String field : arg.split(","))
+            threadCounts.add(Integer.parseInt(field));
+      else
+      {
+         int cores = Runtime.getRuntime().availableProcessors();
+         for (int t = 1; t < cores; t *= 2)
+            threadCounts.add(t);
+         threadCounts.add(cores);
+      }
+      boolean weak = Arrays.asList(args).contains("--weak");
+      arg = Evolution.option(args, "--seconds");
+      double seconds = (arg != null) ? Double.parseDouble(arg) : SECONDS;
+      String out = Evolution.option(args, "--out");
+      String baselineFile = Evolution.option(args, "--baseline");
+      Map<String, Double> baseline = (baselineFile != null) ? baseline(baselineFile) : null;
+
+      List<Result> results = new ArrayList<>();
+      System.out.println(HEADER);
+      for (String game : games)
+      {
+         Evolution template = Evolution.create(game);
+         template.display = false;
+         arg = Evolution.option(args, "--rounds");
+         if (arg != null)
+            template.numRounds = Integer.parseInt(arg);
+         for (long size : sizes)
+         {
+            Result single = null;
+            for (int threads : threadCounts)
+            {
+               long agents = weak ? size * threads : size;
+               Result result = measure(template, game, agents, threads, seconds);
+               if (result == null)
+               {
+                  System.out.println(game + "," + agents + "," + threads + ",skipped: needs about "
+                     + agents * Evolution.BYTES_PER_AGENT / (1 << 20) + " MB of heap (see -Xmx)");
+                  continue;
+               }
+               if (threads == 1)
+                  single = result;
+               // Strong scaling should divide the time by the threads;
+               // weak scaling should keep it the same.
+               if (single != null)
+                  result.efficiency = result.rate / single.rate / (weak ? 1 : threads);
+               else
+                  result.efficiency = Double.NaN;
+               results.add(result);
+               System.out.println(result.csv());
+            }
+         }
+      }
+
+      if (out != null)
+         try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(out))))
+         {
+            writer.println(HEADER);
+            for (Result result : results)
+               writer.println(result.csv());
+         }
+
+      if (baseline != null)
+      {
+         System.out.println();
+         System.out.println("Against baseline " + baselineFile);
+         System.out.println("=================================");
+         int regressions = 0;
+         for (Result result : results)
+         {
+            Double old = baseline.get(result.game + "," + result.agents + "," + result.threads);
+            if (old == null)
+               continue;
+            double ratio = result.rate / old;
+            boolean slower = ratio < 1 - REGRESSION;
+            if (slower)
+               regressions++;
+            System.out.println(String.format(Locale.ROOT, "%s, %d agents, %d threads: %.2fx%s",
+               result.game, result.agents, result.threads, ratio, slower ? "  REGRESSION" : ""));
+         }
+         System.out.println(regressions + " regressions of more than "
+            + (int)(100 * REGRESSION) + "%");
+      }
+   }
+}
@@ -0,0 +1,72 @@
+// FDT in an Evolutionary Environment
+// Steers a running simulation. Parameter changes are written to a control
+// file as "name=value" lines, such as "P=0.6", "payoffs=1,4,7,10",
+// "death=0.02" or "mutation=0.005". Between generations, the engine claims
+// the file by renaming it to "<file>.applied" and applies each change it
+// holds. Changes that fail validation are skipped and reported. To avoid a
+// half-written file being claimed, write it elsewhere and move it in place.
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class Control
+{
+   private final Path file;
+   private final Path applied;
+
+   public Control(Path file)
+   {
+      this.file = file;
+      applied = file.resolveSibling(file.getFileName() + ".applied");
+   }
+
+   // Watches the file named by "--control <file>", or returns null if no
+   // control file was given.
+   public static Control open(String[] args)
+   {
+      String file = Evolution.option(args, "--control");
+      return (file == null) ? null : new Control(Paths.get(file));
+   }
+
+   // Applies any changes waiting in the control file, and returns the
+   // changes applied, as "name=value".
+   public List<String> poll(Evolution engine) throws IOException
+   {
+      List<String> changes = new ArrayList<>();
+      if (!Files.exists(file))
+         return changes;
+      try
+      {
+         Files.move(file, applied, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (NoSuchFileException e)
+      {
+         return changes;
+      }
+
+      for (String line : Files.readAllLines(applied, StandardCharsets.UTF_8))
+      {
+         line = line.trim();
+         if (line.isEmpty() || line.startsWith("#"))
+            continue;
+         int equals = line.indexOf('=');
+         try
+         {
+            if (equals < 0)
+               throw new IllegalArgumentException("expected name=value");
+            String name = line.substring(0, equals).trim();
+            String value = line.substring(equals + 1).trim();
+            engine.steer(name, value);
+            changes.add(name + "=" + value);
+         }
+         catch (IllegalArgumentException e)
+         {
+            System.err.println("Rejected \"" + line + "\": " + e.getMessage());
+         }
+      }
+      return changes;
+   }
+}
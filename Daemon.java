@@ -0,0 +1,303 @@
+// FDT in an Evolutionary Environment
+// Long-running simulation service. One warm JVM takes jobs from a spool
+// directory or a socket and runs them on a shared pool, so a sweep of many
+// short jobs pays for JVM startup, class loading and JIT warmup only once.
+//
+// A job is one line of arguments, just as on the command line:
+//    <game> [--out <file>] [--replicates <n> [--lanes <n>]] [run options]
+// It runs on the Evolution engine, or on Replicates when --replicates is
+// given. Results are written by a separate thread as soon as they are
+// ready: the run's summary as properties, or each replicate's rates as CSV.
+//
+// Jobs run side by side, so whatever they share must be safe to share: jobs
+// may use the same --cache directory, since ResultCache merges every run's
+// index updates under a lock, and each run shuts down its own --threads
+// pool when it ends, so a long-lived daemon doesn't accumulate them.
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class Daemon
+{
+   static final int WARMUP_GENERATIONS = 20;
+   static final long POLL_MILLIS = 1000; // rescan the spool at least this often
+
+   private final ExecutorService pool;
+   private final ExecutorService writer;
+   private final AtomicInteger jobs = new AtomicInteger();
+
+   public Daemon(int threads)
+   {
+      pool = Executors.newFixedThreadPool(threads);
+      writer = Executors.newSingleThreadExecutor();
+   }
+
+   // Runs a few generations of each game, quietly, so that their hot loops
+   // are compiled before the first real job arrives.
+   public void warmup(String[] games) throws IOException
+   {
+      for (String name : games)
+      {
+         Evolution engine = Evolution.create(name);
+         engine.display = false;
+         engine.numGenerations = WARMUP_GENERATIONS;
+         engine.run(new String[0]);
+      }
+   }
+
+   // Queues a job. The returned future completes with the file holding its
+   // results once they have been written, or with the job's error.
+   public CompletableFuture<Path> submit(String job, Path defaultOut)
+   {
+      String[] args = job.trim().split("\\s+");
+      String out = Evolution.option(args, "--out");
+      Path file = (out != null) ? Paths.get(out) : defaultOut;
+      return CompletableFuture.supplyAsync(() -> simulate(args), pool)
+         .thenApplyAsync(result -> write(result, file), writer);
+   }
+
+   // Runs a job and returns the text of its results.
+   private static String simulate(String[] args)
+   {
+      try
+      {
+         Evolution engine = Evolution.create(args[0]);
+         engine.display = false;
+         StringWriter text = new StringWriter();
+         String replicates = Evolution.option(args, "--replicates");
+         if (replicates == null)
+         {
+            Properties summary = engine.run(args);
+            summary.setProperty("config", engine.config());
+            summary.store(text, null);
+            return text.toString();
+         }
+
+         Replicates.check(engine, args);
+         engine.options(args);
+         String arg = Evolution.option(args, "--lanes");
+         int lanes = (arg != null) ? Integer.parseInt(arg) : Replicates.LANES;
+         arg = Evolution.option(args, "--seed");
+         SplittableRandom random = (arg != null)
+            ? new SplittableRandom(Long.parseLong(arg)) : new SplittableRandom();
+         double[][] results = Replicates.simulate(engine, Integer.parseInt(replicates),
+            lanes, random);
+         Replicates.write(new PrintWriter(text), engine.game.typeNames(), results);
+         return text.toString();
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   // Writes a job's results through a temporary file, so that nobody
+   // watching for the file ever sees it half written.
+   private static Path write(String result, Path file)
+   {
+      try
+      {
+         Path dir = file.toAbsolutePath().getParent();
+         Files.createDirectories(dir);
+         Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+         Files.write(temp, result.getBytes(StandardCharsets.UTF_8));
+         Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+         return file;
+      }
+      catch (IOException e)
+      {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   // Returns the message of a failed job's error.
+   private static String message(Throwable error)
+   {
+      while (error instanceof CompletionException && error.getCause() != null)
+         error = error.getCause();
+      return error.toString();
+   }
+
+   // Serves jobs dropped into a spool directory as "<name>.job" files. A job
+   // is claimed by renaming it to "<name>.running", so several daemons can
+   // share a spool, and it ends up as "<name>.done" or "<name>.failed" (with
+   // the error in "<name>.error"). Results default to "<name>.out".
+   public void spool(Path dir) throws IOException, InterruptedException
+   {
+      Files.createDirectories(dir);
+      try (WatchService watcher = dir.getFileSystem().newWatchService())
+      {
+         dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+         while (true)
+         {
+            try (DirectoryStream<Path> waiting = Files.newDirectoryStream(dir, "*.job"))
+            {
+               for (Path job : waiting)
+                  claim(job);
+            }
+            WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (key != null)
+            {
+               key.pollEvents();
+               key.reset();
+            }
+         }
+      }
+   }
+
+   private void claim(Path job) throws IOException
+   {
+      String file = job.getFileName().toString();
+      String name = file.substring(0, file.length() - ".job".length());
+      Path running = job.resolveSibling(name + ".running");
+      try
+      {
+         Files.move(job, running, StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (NoSuchFileException e)
+      {
+         return; // claimed by another daemon
+      }
+
+      String line = Files.readString(running, StandardCharsets.UTF_8);
+      submit(line, job.resolveSibling(name + ".out")).whenComplete((out, error) ->
+      {
+         try
+         {
+            if (error != null)
+               Files.writeString(job.resolveSibling(name + ".error"), message(error) + "\n");
+            Files.move(running, job.resolveSibling(name + (error == null ? ".done" : ".failed")),
+               StandardCopyOption.REPLACE_EXISTING);
+         }
+         catch (IOException e)
+         {
+            System.err.println(name + ": " + e);
+         }
+      });
+   }
+
+   // Serves jobs sent to a socket ("unix:/path" or "host:port"), one per
+   // line. Each finished job is answered with "done <n> <file>" or
+   // "failed <n> <error>", where n counts the jobs sent on the connection.
+   // Results default to "job-<id>.out" in the daemon's directory.
+   // A job can write its results anywhere the daemon can, so the daemon
+   // only accepts jobs from this machine: the host must be a loopback
+   // address, such as localhost, 127.0.0.1 or ::1.
+   public void serve(String address) throws IOException
+   {
+      if (!address.startsWith("unix:"))
+      {
+         String host = address.substring(0, address.lastIndexOf(':'));
+         if (!InetAddress.getByName(host).isLoopbackAddress())
+            throw new IllegalArgumentException("Daemon only serves on a unix: socket or a "
+               + "loopback address, not " + address);
+      }
+      ServerSocketChannel server = IslandModel.bind(address);
+      System.out.println("Serving on " + IslandModel.address(server));
+      while (true)
+      {
+         SocketChannel channel = server.accept();
+         Thread thread = new Thread(() -> connection(channel), "connection");
+         thread.setDaemon(true);
+         thread.start();
+      }
+   }
+
+   private void connection(SocketChannel channel)
+   {
+      try (channel)
+      {
+         BufferedReader in = new BufferedReader(new InputStreamReader(
+            Channels.newInputStream(channel), StandardCharsets.UTF_8));
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(
+            Channels.newOutputStream(channel), StandardCharsets.UTF_8), true);
+         List<CompletableFuture<?>> pending = new ArrayList<>();
+         String line;
+         for (int n = 0; (line = in.readLine()) != null; )
+         {
+            if (line.isBlank())
+               continue;
+            int job = n++;
+            Path file = Paths.get("job-" + jobs.getAndIncrement() + ".out");
+            pending.add(submit(line, file).whenComplete((result, error) ->
+            {
+               synchronized (out)
+               {
+                  out.println((error == null) ? "done " + job + " " + result
+                     : "failed " + job + " " + message(error));
+               }
+            }));
+         }
+         // The client has sent everything; answer the rest before closing.
+         CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]))
+            .exceptionally(error -> null).join();
+      }
+      catch (IOException e)
+      {
+         System.err.println("Connection failed: " + e);
+      }
+   }
+
+   // Sends jobs to a serving daemon: the one given, or else one per line of
+   // standard input. Prints each answer, and returns once all are answered.
+   public static void send(String address, String job) throws IOException
+   {
+      try (SocketChannel channel = IslandModel.connect(address))
+      {
+         PrintWriter out = new PrintWriter(new OutputStreamWriter(
+            Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+         if (job != null)
+            out.println(job);
+         else
+         {
+            BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+            for (String line; (line = stdin.readLine()) != null; )
+               out.println(line);
+         }
+         out.flush();
+         channel.shutdownOutput();
+
+         BufferedReader in = new BufferedReader(new InputStreamReader(
+            Channels.newInputStream(channel), StandardCharsets.UTF_8));
+         for (String line; (line = in.readLine()) != null; )
+            System.out.println(line);
+      }
+   }
+
+   // Usage:
+   //    java Daemon spool <dir> [--threads n] [--warmup game,game]
+   //    java Daemon serve <address> [--threads n] [--warmup game,game]
+   //    java Daemon submit <address> [job]
+   public static void main(String[] args) throws Exception
+   {
+      if (args[0].equals("submit"))
+      {
+         String job = (args.length > 2)
+            ? String.join(" ", Arrays.copyOfRange(args, 2, args.length)) : null;
+         send(args[1], job);
+         return;
+      }
+
+      String arg = Evolution.option(args, "--threads");
+      int threads = (arg != null) ? Integer.parseInt(arg)
+         : Runtime.getRuntime().availableProcessors();
+      Daemon daemon = new Daemon(threads);
+      arg = Evolution.option(args, "--warmup");
+      if (arg != null)
+         daemon.warmup(arg.split(","));
+
+      if (args[0].equals("spool"))
+         daemon.spool(Paths.get(args[1]));
+      else if (args[0].equals("serve"))
+         daemon.serve(args[1]);
+      else
+         throw new IllegalArgumentException("Unknown mode " + args[0]);
+   }
+}
@@ -0,0 +1,58 @@
+// FDT in an Evolutionary Environment
+// The random draws used by one round of a game: a random ordering of the
+// agents, for games that pair them up, and a supply of uniform doubles.
+// A round's draws depend only on the round's own random stream, so they can
+// be generated ahead of time on another thread without changing results.
+
+import java.util.*;
+
+public class Draws
+{
+   private final int[] order;
+   private final double[] uniforms;
+   private int filled = 0, used = 0;
+   private SplittableRandom stream;
+
+   // Draws for numAgents agents. With pairs, each round has a random
+   // ordering of the agents; up to prefill doubles can be generated early.
+   public Draws(int numAgents, boolean pairs, int prefill)
+   {
+      order = pairs ? new int[numAgents] : null;
+      uniforms = new double[prefill];
+   }
+
+   // Starts a new round from the given stream. With prefill, the ordering
+   // and the uniform doubles are all generated now.
+   public void reset(SplittableRandom stream, boolean prefill)
+   {
+      this.stream = stream;
+      // An "inside-out" shuffle builds a fresh random ordering in one pass,
+      // whatever the buffer held before.
+      if (order != null)
+         for (int i = 0; i < order.length; i++)
+         {
+            int j = stream.nextInt(i + 1);
+            order[i] = order[j];
+            order[j] = i;
+         }
+      used = 0;
+      filled = 0;
+      if (prefill)
+         for (; filled < uniforms.length; filled++)
+            uniforms[filled] = stream.nextDouble();
+   }
+
+   // A random ordering of the agents. Null unless the game pairs agents.
+   public int[] order()
+   {
+      return order;
+   }
+
+   // Returns the next uniform double in [0, 1). Once the prefilled doubles
+   // run out, the rest come from the same stream, so the values are the
+   // same whether or not they were prefilled.
+   public double nextDouble()
+   {
+      return (used < filled) ? uniforms[used++] : stream.nextDouble();
+   }
+}
@@ -0,0 +1,390 @@
+// FDT in an Evolutionary Environment
+// Checks that a faster engine is statistically equivalent to the reference
+// engine (the sequential classic selection). Faster engines draw their
+// random numbers differently, so their runs can't be compared one for one;
+// instead, both engines are run over many seeds, and the distributions of
+// their results are compared:
+//    - the final rate of each type, its mean over the generations, and its
+//      rate at evenly spaced checkpoint generations, with two-sample
+//      Kolmogorov-Smirnov tests
+//    - which type (if any) fixed in the population, with a chi-squared
+//      test of homogeneity
+// The p-values are corrected for multiple comparisons with Holm's method,
+// and the candidate passes if no test rejects equivalence.
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Equivalence
+{
+   static final int RUNS = 100; // runs of each engine
+   static final double ALPHA = 0.05; // family-wise error rate
+   static final double FIXATION = 0.95; // a type has fixed above this rate
+   static final int CHECKPOINTS = 10; // generations compared along the way
+
+   // Runs the game with the given engine options over a range of seeds.
+   // Row i holds the final rates of run i, followed by its mean rates, and
+   // its rates after each of the checkpoint generations. Options may start
+   // with "replicates" to run on the batched engine.
+   public static double[][] sample(String game, String[] options, long firstSeed,
+      int runs, int threads, int[] checkpoints) throws Exception
+   {
+      if (options.length > 0 && options[0].equals("replicates"))
+      {
+         Evolution engine = Evolution.create(game);
+         Replicates.check(engine, options);
+         engine.options(options);
+         String lanes = Evolution.option(options, "--lanes");
+         return Replicates.simulate(engine, runs,
+            (lanes != null) ? Integer.parseInt(lanes) : Replicates.LANES,
+            new SplittableRandom(firstSeed), checkpoints);
+      }
+
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try
+      {
+         List<Future<double[]>> results = new ArrayList<>();
+         for (int i = 0; i < runs; i++)
+         {
+            long seed = firstSeed + i;
+            results.add(pool.submit(() ->
+            {
+               // The rates along the way are read back from a trajectory.
+               Path trajectory = Files.createTempFile("equivalence", ".fdtt");
+               try
+               {
+                  String[] args = Arrays.copyOf(options, options.length + 4);
+                  args[options.length] = "--seed";
+                  args[options.length + 1] = Long.toString(seed);
+                  args[options.length + 2] = "--trajectory";
+                  args[options.length + 3] = trajectory.toString();
+                  Evolution engine = Evolution.create(game);
+                  engine.display = false;
+                  Properties summary = engine.run(args);
+                  double[] rates = ResultCache.rates(summary, "rate");
+                  double[] means = ResultCache.rates(summary, "mean");
+                  int numTypes = rates.length;
+                  double[] row = Arrays.copyOf(rates, (2 + checkpoints.length) * numTypes);
+                  System.arraycopy(means, 0, row, numTypes, numTypes);
+                  TrajectoryReader reader = new TrajectoryReader(trajectory);
+                  for (int c = 0; c < checkpoints.length; c++)
+                  {
+                     int[] counts = reader.counts(checkpoints[c]);
+                     for (int t = 0; t < numTypes; t++)
+                        row[(2 + c) * numTypes + t] = (double)counts[t] / engine.numAgents;
+                  }
+                  return row;
+               }
+               finally
+               {
+                  Files.deleteIfExists(trajectory);
+               }
+            }));
+         }
+         double[][] sample = new double[runs][];
+         for (int i = 0; i < runs; i++)
+            sample[i] = results.get(i).get();
+         return sample;
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+   }
+
+   // Returns the generations at which the rates are compared: up to count
+   // evenly spaced generations before the last, whose rates are already
+   // compared as the final ones.
+   public static int[] checkpoints(int generations, int count)
+   {
+      TreeSet<Integer> gens = new TreeSet<>();
+      for (int j = 1; j <= count; j++)
+         gens.add((int)Math.round((double)j * generations / (count + 1)));
+      gens.remove(0);
+      gens.remove(generations);
+      int[] checkpoints = new int[gens.size()];
+      int c = 0;
+      for (int g : gens)
+         checkpoints[c++] = g;
+      return checkpoints;
+   }
+
+   // Returns the mean of column c of a sample.
+   private static double mean(double[][] sample, int c)
+   {
+      double sum = 0;
+      for (double[] row : sample)
+         sum += row[c];
+      return sum / sample.length;
+   }
+
+   // Returns column c of a sample, sorted.
+   private static double[] column(double[][] sample, int c)
+   {
+      double[] values = new double[sample.length];
+      for (int i = 0; i < sample.length; i++)
+         values[i] = sample[i][c];
+      Arrays.sort(values);
+      return values;
+   }
+
+   // The two-sample Kolmogorov-Smirnov statistic of two sorted samples:
+   // the largest gap between their empirical distribution functions.
+   public static double ks(double[] a, double[] b)
+   {
+      int i = 0, j = 0;
+      double d = 0;
+      while (i < a.length && j < b.length)
+      {
+         double x = Math.min(a[i], b[j]);
+         while (i < a.length && a[i] == x)
+            i++;
+         while (j < b.length && b[j] == x)
+            j++;
+         d = Math.max(d, Math.abs((double)i / a.length - (double)j / b.length));
+      }
+      return d;
+   }
+
+   // The asymptotic p-value of a KS statistic for samples of sizes n and m.
+   // Ties make the test conservative, which only errs towards passing
+   // candidates whose results are discrete, like type counts.
+   public static double ksPValue(double d, int n, int m)
+   {
+      double ne = (double)n * m / (n + m);
+      double lambda = (Math.sqrt(ne) + 0.12 + 0.11 / Math.sqrt(ne)) * d;
+      if (lambda < 0.2)
+         return 1;
+      double sum = 0, sign = 1;
+      for (int j = 1; j <= 100; j++)
+      {
+         double term = sign * 2 * Math.exp(-2 * j * j * lambda * lambda);
+         sum += term;
+         if (Math.abs(term) < 1e-12)
+            break;
+         sign = -sign;
+      }
+      return Math.min(Math.max(sum, 0), 1);
+   }
+
+   // The category of a run: the type that fixed, or numTypes if none did.
+   private static int fixed(double[] row, int numTypes)
+   {
+      for (int t = 0; t < numTypes; t++)
+         if (row[t] >= FIXATION)
+            return t;
+      return numTypes;
+   }
+
+   // The chi-squared statistic of homogeneity of two rows of counts, and
+   // its degrees of freedom. Categories seen in neither row are dropped.
+   public static double[] chiSquared(int[] a, int[] b)
+   {
+      double n = 0, m = 0;
+      for (int k = 0; k < a.length; k++)
+      {
+         n += a[k];
+         m += b[k];
+      }
+      double x = 0;
+      int categories = 0;
+      for (int k = 0; k < a.length; k++)
+      {
+         double total = a[k] + b[k];
+         if (total == 0)
+            continue;
+         categories++;
+         double ea = total * n / (n + m), eb = total * m / (n + m);
+         x += (a[k] - ea) * (a[k] - ea) / ea + (b[k] - eb) * (b[k] - eb) / eb;
+      }
+      return new double[] {x, categories - 1};
+   }
+
+   // The p-value of a chi-squared statistic: the regularized upper
+   // incomplete gamma function Q(df / 2, x / 2).
+   public static double chiSquaredPValue(double x, double df)
+   {
+      if (df <= 0)
+         return 1;
+      double a = df / 2, z = x / 2;
+      if (z <= 0)
+         return 1;
+      if (z < a + 1)
+      {
+         // Series for the lower function P(a, z).
+         double term = 1 / a, sum = term;
+         for (int n = 1; n < 1000 && Math.abs(term) > 1e-15 * Math.abs(sum); n++)
+         {
+            term *= z / (a + n);
+            sum += term;
+         }
+         return Math.max(0, 1 - sum * Math.exp(-z + a * Math.log(z) - logGamma(a)));
+      }
+      // Continued fraction for Q(a, z), by Lentz's method.
+      double b = z + 1 - a, c = 1 / 1e-300, d = 1 / b, h = d;
+      for (int n = 1; n < 1000; n++)
+      {
+         double an = -n * (n - a);
+         b += 2;
+         d = an * d + b;
+         if (Math.abs(d) < 1e-300)
+            d = 1e-300;
+         c = b + an / c;
+         if (Math.abs(c) < 1e-300)
+            c = 1e-300;
+         d = 1 / d;
+         double delta = d * c;
+         h *= delta;
+         if (Math.abs(delta - 1) < 1e-15)
+            break;
+      }
+      return Math.min(1, Math.exp(-z + a * Math.log(z) - logGamma(a)) * h);
+   }
+
+   // The log of the gamma function, by the Lanczos approximation.
+   private static double logGamma(double x)
+   {
+      double[] c = {76.18009172947146, -86.50532032941677, 24.01409824083091,
+         -1.231739572450155, 0.1208650973866179e-2, -0.5395239384953e-5};
+      double y = x, tmp = x + 5.5;
+      tmp -= (x + 0.5) * Math.log(tmp);
+      double series = 1.000000000190015;
+      for (double coefficient : c)
+         series += coefficient / ++y;
+      return -tmp + Math.log(2.5066282746310005 * series / x);
+   }
+
+   // Holm's step-down method: returns which of the p-values are rejected
+   // while keeping the family-wise error rate at alpha.
+   public static boolean[] holm(double[] p, double alpha)
+   {
+      Integer[] order = new Integer[p.length];
+      for (int i = 0; i < p.length; i++)
+         order[i] = i;
+      Arrays.sort(order, Comparator.comparingDouble(i -> p[i]));
+      boolean[] rejected = new boolean[p.length];
+      for (int k = 0; k < p.length; k++)
+      {
+         if (p[order[k]] > alpha / (p.length - k))
+            break;
+         rejected[order[k]] = true;
+      }
+      return rejected;
+   }
+
+   // Usage: java Equivalence <game> [options] -- <candidate options>
+   // Options:
+   //    --runs <n>          runs of each engine (default RUNS)
+   //    --alpha <a>         family-wise error rate (default ALPHA)
+   //    --threads <n>       runs to make at once
+   //    --checkpoints <n>   generations at which to compare the rates
+   //    --generations <n>, --rounds <n>, --death <rate>, --mutation <rate>
+   //                        parameters of both engines
+   // The candidate options select the engine to check, such as
+   // "--threads 4", "--pipeline 8" or "replicates --lanes 16". Exits with
+   // status 1 if the candidate fails.
+   public static void main(String[] args) throws Exception
+   {
+      int split = Arrays.asList(args).indexOf("--");
+      String[] options = (split < 0) ? args : Arrays.copyOfRange(args, 0, split);
+      String[] candidate = (split < 0) ? new String[0]
+         : Arrays.copyOfRange(args, split + 1, args.length);
+      String game = options[0];
+      String arg = Evolution.option(options, "--runs");
+      int runs = (arg != null) ? Integer.parseInt(arg) : RUNS;
+      arg = Evolution.option(options, "--alpha");
+      double alpha = (arg != null) ? Double.parseDouble(arg) : ALPHA;
+      arg = Evolution.option(options, "--threads");
+      int threads = (arg != null) ? Integer.parseInt(arg)
+         : Runtime.getRuntime().availableProcessors();
+      arg = Evolution.option(options, "--checkpoints");
+      int count = (arg != null) ? Integer.parseInt(arg) : CHECKPOINTS;
+
+      // Both engines share the game parameters; the candidate adds its own.
+      List<String> shared = new ArrayList<>();
+      for (String name : new String[] {"--generations", "--rounds", "--death", "--mutation"})
+         if (Evolution.option(options, name) != null)
+            Collections.addAll(shared, name, Evolution.option(options, name));
+      List<String> mine = new ArrayList<>(Arrays.asList(candidate));
+      mine.addAll(shared);
+
+      Evolution engine = Evolution.create(game);
+      // Refuse a candidate the batched engine can't run before the reference is sampled.
+      if (candidate.length > 0 && candidate[0].equals("replicates"))
+         Replicates.check(engine, candidate);
+      engine.options(shared.toArray(new String[0]));
+      int[] checkpoints = checkpoints(engine.numGenerations, count);
+      String[] names = engine.game.typeNames();
+      int numTypes = names.length;
+
+      // Distinct seeds keep the two samples independent.
+      double[][] reference = sample(game, shared.toArray(new String[0]), 1, runs, threads,
+         checkpoints);
+      double[][] sample = sample(game, mine.toArray(new String[0]), 1 + runs, runs, threads,
+         checkpoints);
+
+      List<String> tests = new ArrayList<>();
+      List<String> statistics = new ArrayList<>();
+      List<Double> pValues = new ArrayList<>();
+      for (int c = 0; c < (2 + checkpoints.length) * numTypes; c++)
+      {
+         // The rates sum to 1, so the last type's follow from the others.
+         if (c % numTypes == numTypes - 1)
+            continue;
+         double d = ks(column(reference, c), column(sample, c));
+         String when = (c < numTypes) ? "final " : (c < 2 * numTypes) ? "mean "
+            : "gen " + checkpoints[c / numTypes - 2] + " ";
+         tests.add(when + names[c % numTypes]);
+         statistics.add(String.format("KS D=%.4f", d));
+         pValues.add(ksPValue(d, runs, runs));
+      }
+      int[] a = new int[numTypes + 1], b = new int[numTypes + 1];
+      for (int i = 0; i < runs; i++)
+      {
+         a[fixed(reference[i], numTypes)]++;
+         b[fixed(sample[i], numTypes)]++;
+      }
+      double[] chi = chiSquared(a, b);
+      tests.add("fixation");
+      statistics.add(String.format("chi2=%.3f (df %d)", chi[0], (int)chi[1]));
+      pValues.add(chiSquaredPValue(chi[0], chi[1]));
+
+      double[] p = new double[pValues.size()];
+      for (int i = 0; i < p.length; i++)
+         p[i] = pValues.get(i);
+      boolean[] rejected = holm(p, alpha);
+      boolean pass = true;
+      for (boolean r : rejected)
+         pass &= !r;
+
+      System.out.println("Equivalence of \"" + String.join(" ", candidate)
+         + "\" with the reference engine");
+      System.out.println(game + ", " + runs + " runs of each engine"
+         + (shared.isEmpty() ? "" : ", " + String.join(" ", shared)));
+      System.out.println("=================================");
+      for (int i = 0; i < p.length; i++)
+         System.out.println(String.format("%-24s %-22s p=%.4f  %s", tests.get(i),
+            statistics.get(i), p[i], rejected[i] ? "FAIL" : "pass"));
+      System.out.println("Fixation counts: reference " + Arrays.toString(a)
+         + ", candidate " + Arrays.toString(b) + " (the last is none)");
+      System.out.println("Mean rates by generation, reference / candidate:");
+      for (int c = 0; c < checkpoints.length; c++)
+      {
+         StringBuilder line = new StringBuilder(String.format("%8d", checkpoints[c]));
+         for (int t = 0; t < numTypes; t++)
+         {
+            int column = (2 + c) * numTypes + t;
+            line.append(String.format("  %s %.4f / %.4f", names[t], mean(reference, column),
+               mean(sample, column)));
+         }
+         System.out.println(line);
+      }
+      System.out.println("=================================");
+      System.out.println((pass ? "PASS" : "FAIL") + " (Holm, alpha " + alpha + ")");
+      System.out.println();
+      if (!pass)
+         System.exit(1);
+   }
+}
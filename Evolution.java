@@ -0,0 +1,858 @@
+// FDT in an Evolutionary Environment
+// The evolution loop shared by every game. Each generation, the game plays
+// its rounds and the engine repopulates: agents reproduce in proportion to
+// their utility, die in proportion to its inverse, and occasionally mutate.
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Evolution
+{
+   // Bump whenever a change to the simulation would change its results,
+   // so that cached summaries from older versions are no longer matched.
+   static final String ENGINE_VERSION = "4";
+   // Rough memory footprint of an engine per agent, for tools that size
+   // their work to the heap.
+   static final int BYTES_PER_AGENT = 64;
+
+   final Game game;
+   final int numAgents;
+   final int numTypes;
+   // Misc parameters, set by each game
+   int numGenerations = 1000;
+   int numRounds = 100;
+   double deathRate = 0.01;
+   double mutationRate = 0.001;
+   double displayRate = 100;
+   double[] initialRates;
+   // Whether to print the population as the run goes.
+   boolean display = true;
+
+   // The engine's own random numbers, and the root of the streams that
+   // each round of the game draws from.
+   SplittableRandom random = new SplittableRandom();
+   SplittableRandom rounds = random.split();
+   long seed;
+   boolean seeded = false;
+   // Mixed into the seed for streams that must not consume the engine's
+   // draws, so that tracking a run doesn't change its results.
+   static final long TRACKING_SEED = 0x6A09E667F3BCC909L;
+
+   // The current population: each agent's type, the number of agents of
+   // each type, and the corresponding population rates.
+   int[] population;
+   int[] agents;
+   double[] popRates;
+   // Scratch space reused every generation.
+   final double[] utilities;
+   final int[] indices;
+   RandomCollection births, deaths;
+   int gen = 0;
+
+   // How births and deaths are chosen: "classic" (with replacement, as
+   // originally written), or exactly without replacement by "proportional"
+   // (utility and inverse utility), "moran" (utility and uniform), "fermi"
+   // (exponential in utility), or "tournament" (best and worst of a few).
+   String selection = "classic";
+   double intensity = 1; // selection intensity for "fermi"
+   int tournamentSize = 2;
+   WeightedSampler birthSampler, deathSampler;
+   double[] weights;
+   int[] contestants;
+   // Threads for the parallel classic selection, or 0 to select sequentially.
+   int threads = 0;
+   ParallelSelection parallel;
+
+   // Rounds of draws generated ahead by the pipeline, or 0 to generate
+   // them as they are needed. The pipeline also solves the next
+   // generation's decisions while the current one finishes.
+   int pipelineDepth = 0;
+   Pipeline pipeline;
+   Draws draws;
+   Future<?> solving;
+   double[] solvedRates;
+
+   // Tracks the ancestry of every agent when run with "--genealogy".
+   Genealogy genealogy = null;
+   // Heritable continuous traits of every agent, when run with "--traits".
+   Traits traits = null;
+   double traitSd = Traits.SD;
+   // Matches the agents tracked by either of them to the slots of each new
+   // population.
+   Succession succession = null;
+   // Publishes the state of the run after every generation, when run
+   // with "--status".
+   StatusWriter status = null;
+
+   public Evolution(Game game, int numAgents)
+   {
+      this.game = game;
+      this.numAgents = numAgents;
+      this.numTypes = game.numTypes();
+      population = new int[numAgents];
+      agents = new int[numTypes];
+      popRates = new double[numTypes];
+      utilities = new double[numAgents];
+      indices = new int[numAgents];
+      for (int i = 0; i < numAgents; i++)
+         indices[i] = i;
+      births = new RandomCollection(numAgents, random);
+      deaths = new RandomCollection(numAgents, random);
+      draws = new Draws(numAgents, game.pairs(), 0);
+   }
+
+   // Returns the engine configured by a game class's static engine() method,
+   // so that tools can run any game by name.
+   public static Evolution create(String name)
+   {
+      try
+      {
+         return (Evolution)Class.forName(name).getMethod("engine").invoke(null);
+      }
+      catch (ReflectiveOperationException e)
+      {
+         throw new IllegalArgumentException("Unknown game " + name, e);
+      }
+   }
+
+   // Returns an engine for the same game, with the same parameters, but a
+   // different number of agents.
+   public Evolution withAgents(int numAgents)
+   {
+      Evolution engine = new Evolution(game, numAgents);
+      engine.numGenerations = numGenerations;
+      engine.numRounds = numRounds;
+      engine.deathRate = deathRate;
+      engine.mutationRate = mutationRate;
+      engine.displayRate = displayRate;
+      engine.initialRates = initialRates;
+      engine.display = display;
+      engine.selection = selection;
+      engine.intensity = intensity;
+      engine.tournamentSize = tournamentSize;
+      engine.threads = threads;
+      engine.pipelineDepth = pipelineDepth;
+      return engine;
+   }
+
+   // Returns the value following the given flag on the command line, or null.
+   public static String option(String[] args, String name)
+   {
+      for (int i = 0; i + 1 < args.length; i++)
+         if (args[i].equals(name))
+            return args[i + 1];
+      return null;
+   }
+
+   // Options that ask for output a cached result can't provide: the state
+   // of every generation, or the genealogy report. A steered run's result
+   // also depends on when the changes arrived.
+   static final String[] UNCACHED = {"--trajectory", "--status", "--control", "--histogram",
+      "--genealogy"};
+
+   // Returns true if a run with these options may use the result cache.
+   static boolean cacheable(String[] args)
+   {
+      for (String name : UNCACHED)
+         if (Arrays.asList(args).contains(name))
+            return false;
+      return true;
+   }
+
+   // Makes the run reproducible.
+   public void seed(long seed)
+   {
+      this.seed = seed;
+      seeded = true;
+      random = new SplittableRandom(seed);
+      rounds = random.split();
+      births = new RandomCollection(numAgents, random);
+      deaths = new RandomCollection(numAgents, random);
+      birthSampler = null;
+      // Draws of distinct agents start from the identity, so a reused
+      // engine doesn't depend on the runs it made before.
+      for (int i = 0; i < numAgents; i++)
+         indices[i] = i;
+   }
+
+   // Randomly shuffles the values in an array.
+   public static void shuffleArray(int[] array, SplittableRandom random)
+   {
+      for (int i = array.length - 1; i > 0; i--)
+      {
+         int index = random.nextInt(i + 1);
+         int temp = array[index];
+         array[index] = array[i];
+         array[i] = temp;
+      }
+   }
+
+   // Starts a new run from the given population rates.
+   public void start(double[] rates)
+   {
+      System.arraycopy(rates, 0, popRates, 0, numTypes);
+      setPopulation();
+      gen = 0;
+      if (succession != null)
+         succession.start(population);
+      if (genealogy != null)
+         genealogy.start(population);
+      if (traits != null)
+         traits.start(population);
+   }
+
+   // Sets the population to match the current population rates. Missing
+   // spots are filled randomly, and the rates are corrected to match.
+   public void setPopulation()
+   {
+      countPopulation();
+      fillPopulation();
+   }
+
+   // Sets the number of agents of each type proportional to the population
+   // rates, and corrects the rates to match.
+   private void countPopulation()
+   {
+      int k = 0;
+      for (int t = 0; t < numTypes; t++)
+      {
+         agents[t] = Math.min((int)(popRates[t] * numAgents), numAgents - k);
+         k += agents[t];
+      }
+
+      // Fill in any missing spots randomly,
+      // proportional to the intended population rates.
+      for (; k < numAgents; k++)
+      {
+         double rand = random.nextDouble(), mass = popRates[0];
+         int t = 0;
+         while (t < numTypes - 1 && rand >= mass)
+            mass += popRates[++t];
+         agents[t]++;
+      }
+      // Correct population rate for randomness
+      for (int t = 0; t < numTypes; t++)
+         popRates[t] = (double)agents[t] / numAgents;
+   }
+
+   // Lays out the population with each type's agents side by side.
+   private void fillPopulation()
+   {
+      int k = 0;
+      for (int t = 0; t < numTypes; t++)
+      {
+         Arrays.fill(population, k, k + agents[t], t);
+         k += agents[t];
+      }
+   }
+
+   // Runs a single generation: the game plays NUM_ROUNDS rounds, then the
+   // population is repopulated based on the utilities earned.
+   public void generation()
+   {
+      Arrays.fill(utilities, 0);
+      if (traits != null)
+         game.traits(traits.values());
+      // Use the decisions solved ahead, unless the rates have since changed.
+      if (solving != null)
+      {
+         Pipeline.await(solving);
+         solving = null;
+         if (!Arrays.equals(solvedRates, popRates))
+            game.prepare(popRates);
+      }
+      else
+         game.prepare(popRates);
+
+      for (int j = 0; j < numRounds; j++)
+      {
+         if (pipeline != null)
+         {
+            Draws ready = pipeline.take();
+            game.play(population, agents, utilities, ready);
+            pipeline.recycle(ready);
+         }
+         else
+         {
+            draws.reset(rounds.split(), false);
+            game.play(population, agents, utilities, draws);
+         }
+      }
+      if (status != null)
+         status.summarize(population, utilities, numRounds, game);
+      repopulate();
+      gen++;
+      if (status != null)
+         status.publish(gen, numRounds, agents, StatusWriter.RUNNING);
+   }
+
+   // Starts generating draws ahead on other threads, if a depth was given.
+   public void startPipeline()
+   {
+      if (pipelineDepth > 0 && pipeline == null)
+         pipeline = new Pipeline(pipelineDepth, numAgents, game.pairs(), rounds);
+   }
+
+   // Stops the threads of the parallel selection.
+   public void stopThreads()
+   {
+      if (parallel != null)
+         parallel.close();
+      parallel = null;
+   }
+
+   // Stops the pipeline's threads.
+   public void stopPipeline()
+   {
+      if (pipeline == null)
+         return;
+      if (solving != null)
+         Pipeline.await(solving);
+      solving = null;
+      pipeline.close();
+      pipeline = null;
+   }
+
+   // Returns the i-th of a sequence of distinct random agents, by
+   // shuffling only as much of the index array as is needed.
+   private int draw(int i)
+   {
+      int j = i + random.nextInt(numAgents - i);
+      int temp = indices[i];
+      indices[i] = indices[j];
+      indices[j] = temp;
+      return indices[i];
+   }
+
+   // Based on the earned utilities of the agents, repopulate the population.
+   // Eliminate low utility agents, reproduce high utility agents, mutate,
+   // and modify the population rates.
+   public void repopulate()
+   {
+      int death = (int)(deathRate * numAgents);
+      boolean exact = !selection.equals("classic");
+
+      // Mutate a small random subset of the population to random types.
+      // The exact schemes also change the agent itself, so that later
+      // births and deaths see its new type.
+      int mutation = (int)(mutationRate * numAgents);
+      int index = 0;
+      for (int i = 0; i < mutation; i++)
+      {
+         int k = draw(index++);
+         while (agents[population[k]] == 0)
+            k = draw(index++);
+         int mutant = random.nextInt(numTypes);
+         agents[population[k]]--;
+         agents[mutant]++;
+         if (exact)
+            population[k] = mutant;
+         if (succession != null)
+            mutated(k, mutant);
+      }
+
+      if (exact)
+         exactSelection(death);
+      else if (threads > 0)
+         parallelSelection(death);
+      else
+         classicSelection(death);
+
+      // Mark the changes in the population. Once the new rates are known,
+      // the pipeline starts solving the next generation's decisions.
+      for (int t = 0; t < numTypes; t++)
+         popRates[t] = (double)agents[t] / numAgents;
+      countPopulation();
+      if (pipeline != null)
+      {
+         solvedRates = popRates.clone();
+         solving = pipeline.submit(() -> game.prepare(solvedRates));
+      }
+      fillPopulation();
+      if (succession != null)
+      {
+         int[] source = succession.next(population);
+         if (genealogy != null)
+            genealogy.next(population, source);
+         if (traits != null)
+            traits.next(population, source);
+      }
+   }
+
+   // Records a mutation, birth or death with whatever tracks the agents.
+   private void mutated(int k, int t)
+   {
+      succession.mutate(k, t);
+      if (genealogy != null)
+         genealogy.mutate(k, t);
+   }
+
+   private void born(int parent)
+   {
+      succession.birth(parent);
+      if (genealogy != null)
+         genealogy.birth(parent);
+      if (traits != null)
+         traits.birth(parent);
+   }
+
+   private void died(int dead)
+   {
+      succession.death(dead);
+   }
+
+   // Returns the smallest positive utility, or 1 if there is none. Death
+   // weights treat lower utilities as this one, so they stay finite.
+   private double utilityFloor()
+   {
+      double floor = Double.MAX_VALUE;
+      for (int i = 0; i < numAgents; i++)
+         if (utilities[i] > 0 && utilities[i] < floor)
+            floor = utilities[i];
+      return (floor == Double.MAX_VALUE) ? 1 : floor;
+   }
+
+   // The original selection: births and deaths are drawn with replacement,
+   // and deaths drawn from a type that has already died out are redrawn.
+   private void classicSelection(int death)
+   {
+      // RandomCollection allows us to perform a random selection of an index,
+      // weighted by the utility earned by the corresponding agent. A second
+      // one selects agents proportional to how *low* their utility is.
+      double floor = utilityFloor();
+      births.clear();
+      deaths.clear();
+      for (int i = 0; i < numAgents; i++)
+      {
+         births.add(utilities[i], i);
+         deaths.add(1 / Math.max(utilities[i], floor), i);
+      }
+      // Randomly choose a set of high-utility agents,
+      // and add more of them to the population.
+      for (int i = 0; i < death; i++)
+      {
+         int parent = births.next();
+         agents[population[parent]]++;
+         if (succession != null)
+            born(parent);
+      }
+      // Randomly choose a set of low-utility agents, and kill them off.
+      for (int i = 0; i < death; i++)
+      {
+         int dead = deaths.next();
+         while (agents[population[dead]] == 0)
+            dead = deaths.next();
+         agents[population[dead]]--;
+         if (succession != null)
+            died(dead);
+      }
+   }
+
+   // The classic selection, with its tables built and its draws made in
+   // parallel. Deaths from types that have died out are redrawn in order.
+   private void parallelSelection(int death)
+   {
+      if (parallel == null)
+         parallel = new ParallelSelection(numAgents, threads);
+      parallel.build(utilities);
+
+      int[] drawn = parallel.births(death, random);
+      for (int i = 0; i < death; i++)
+      {
+         agents[population[drawn[i]]]++;
+         if (succession != null)
+            born(drawn[i]);
+      }
+      drawn = parallel.deaths(death, random);
+      for (int i = 0; i < death; i++)
+      {
+         int dead = drawn[i];
+         while (agents[population[dead]] == 0)
+            dead = parallel.death(random);
+         agents[population[dead]]--;
+         if (succession != null)
+            died(dead);
+      }
+   }
+
+   // Fills the birth and death samplers with the weights of the selected
+   // scheme. Every weight is finite and the largest is close to 1.
+   private void selectionWeights()
+   {
+      double max = -Double.MAX_VALUE, min = Double.MAX_VALUE, sum = 0;
+      for (int i = 0; i < numAgents; i++)
+      {
+         max = Math.max(max, utilities[i]);
+         min = Math.min(min, utilities[i]);
+         sum += Math.abs(utilities[i]);
+      }
+
+      if (selection.equals("tournament"))
+      {
+         birthSampler.fill(numAgents);
+         deathSampler.fill(numAgents);
+         return;
+      }
+      if (selection.equals("fermi"))
+      {
+         // Exponential fitness, in units of the mean utility so that the
+         // intensity means the same thing in every game. Shifting by the
+         // extremes keeps every exponent at or below zero.
+         double scale = (sum > 0) ? sum / numAgents : 1;
+         for (int i = 0; i < numAgents; i++)
+            weights[i] = Math.exp(intensity * (utilities[i] - max) / scale);
+         birthSampler.build(weights, numAgents);
+         for (int i = 0; i < numAgents; i++)
+            weights[i] = Math.exp(intensity * (min - utilities[i]) / scale);
+         deathSampler.build(weights, numAgents);
+         return;
+      }
+
+      // Births proportional to utility. If nobody earned anything,
+      // everybody is equally likely to reproduce.
+      if (max > 0)
+         birthSampler.build(utilities, numAgents);
+      else
+         birthSampler.fill(numAgents);
+      // Moran deaths are uniform; otherwise inversely proportional to
+      // utility, relative to the smallest positive utility.
+      if (selection.equals("moran"))
+         deathSampler.fill(numAgents);
+      else
+      {
+         double floor = utilityFloor();
+         for (int i = 0; i < numAgents; i++)
+            weights[i] = floor / Math.max(utilities[i], floor);
+         deathSampler.build(weights, numAgents);
+      }
+   }
+
+   // Holds a tournament among distinct agents drawn uniformly from those
+   // left in the sampler. The best (or worst) is removed and returned;
+   // the others go back into the sampler.
+   private int tournament(WeightedSampler sampler, boolean best)
+   {
+      int size = Math.min(tournamentSize, sampler.remaining());
+      int winner = sampler.drawAndRemove();
+      for (int i = 1; i < size; i++)
+      {
+         int k = sampler.drawAndRemove();
+         if (best ? utilities[k] > utilities[winner] : utilities[k] < utilities[winner])
+         {
+            contestants[i - 1] = winner;
+            winner = k;
+         }
+         else
+            contestants[i - 1] = k;
+      }
+      for (int i = 1; i < size; i++)
+         sampler.set(contestants[i - 1], 1);
+      return winner;
+   }
+
+   // Exact selection: every agent reproduces at most once and dies at most
+   // once per generation, so no draw is ever wasted or retried.
+   private void exactSelection(int death)
+   {
+      if (birthSampler == null)
+      {
+         birthSampler = new WeightedSampler(numAgents, random);
+         deathSampler = new WeightedSampler(numAgents, random);
+         weights = new double[numAgents];
+         contestants = new int[Math.max(tournamentSize, 1)];
+      }
+      selectionWeights();
+      boolean tournament = selection.equals("tournament");
+
+      for (int i = 0; i < death; i++)
+      {
+         int parent = tournament ? tournament(birthSampler, true) : birthSampler.drawAndRemove();
+         agents[population[parent]]++;
+         if (succession != null)
+            born(parent);
+      }
+      for (int i = 0; i < death; i++)
+      {
+         int dead = tournament ? tournament(deathSampler, false) : deathSampler.drawAndRemove();
+         agents[population[dead]]--;
+         if (succession != null)
+            died(dead);
+      }
+   }
+
+   // Changes a parameter between generations: the death or mutation rate,
+   // or one of the game's parameters. Throws IllegalArgumentException if
+   // the name or value is invalid.
+   public void steer(String name, String value)
+   {
+      steer(new String[] {name}, new String[] {value});
+   }
+
+   // Changes several parameters at once. Every value is checked, together
+   // with the others, before any of them is applied.
+   public void steer(String[] names, String[] values)
+   {
+      // The pipeline may be solving decisions from the game's parameters,
+      // so it has to finish before any of them change.
+      invalidate();
+      double death = deathRate, mutation = mutationRate;
+      List<String> gameNames = new ArrayList<>(), gameValues = new ArrayList<>();
+      for (int i = 0; i < names.length; i++)
+      {
+         if (names[i].equals("death") || names[i].equals("mutation"))
+         {
+            double rate = Double.parseDouble(values[i]);
+            if (!(rate >= 0 && rate <= 1))
+               throw new IllegalArgumentException(names[i] + " must be between 0 and 1");
+            if (names[i].equals("death"))
+               death = rate;
+            else
+               mutation = rate;
+         }
+         else
+         {
+            gameNames.add(names[i]);
+            gameValues.add(values[i]);
+         }
+      }
+      if (!game.steer(gameNames.toArray(new String[0]), gameValues.toArray(new String[0])))
+         throw new IllegalArgumentException("Unknown parameter " + String.join(", ", gameNames));
+      deathRate = death;
+      mutationRate = mutation;
+   }
+
+   // The current value of every parameter that steer accepts, by name.
+   public Map<String, String> parameters()
+   {
+      Map<String, String> parameters = new LinkedHashMap<>();
+      parameters.put("death", Double.toString(deathRate));
+      parameters.put("mutation", Double.toString(mutationRate));
+      parameters.putAll(game.parameters());
+      return parameters;
+   }
+
+   // Drops any decisions solved ahead under the old parameters, so that the
+   // next generation solves them again.
+   public void invalidate()
+   {
+      if (solving != null)
+         Pipeline.await(solving);
+      solving = null;
+   }
+
+   // Displays the given population rates for this generation,
+   // every DISPLAY_RATE generations.
+   public void displayPopulation(double[] rates, int gen)
+   {
+      if (!display || (gen + 1) % displayRate != 0)
+         return;
+      String[] names = game.typeNames();
+      game.display(rates);
+      System.out.println("Generation " + (gen+1));
+      System.out.println("=================================");
+      for (int t = 0; t < numTypes; t++)
+         System.out.println("Proportion of " + names[t] + ": " + rates[t]);
+      if (traits != null)
+         for (int j = 0; j < traits.names().length; j++)
+            for (int t = 0; t < numTypes; t++)
+               System.out.println("Mean " + traits.names()[j] + " of " + names[t] + ": "
+                  + traits.mean(j, t));
+      System.out.println();
+   }
+
+   // Displays when the population last shared a common ancestor, and how
+   // long mutant FDT lineages survived.
+   public void displayGenealogy()
+   {
+      if (!display)
+         return;
+      String fdt = game.typeNames()[numTypes - 1];
+      int coalescence = genealogy.coalescence();
+      if (coalescence < 0)
+         System.out.println("Population has not coalesced yet: it descends from several "
+            + "initial agents");
+      else
+         System.out.println("Population coalesces at generation " + coalescence);
+      double[] survival = genealogy.survival();
+      for (int age = 1; age < survival.length; age *= 2)
+         System.out.println("Mutant " + fdt + " lineages surviving " + age
+            + " generations: " + survival[age]);
+      System.out.println();
+   }
+
+   // Describes everything that determines the outcome of a run.
+   // Used as the key when caching results.
+   public String config()
+   {
+      return game.config() + " rates=" + Arrays.toString(initialRates)
+         + " agents=" + numAgents + " generations=" + numGenerations
+         + " rounds=" + numRounds + " death=" + deathRate
+         + " mutation=" + mutationRate + " selection=" + selection
+         + (selection.equals("fermi") ? " intensity=" + intensity : "")
+         + (selection.equals("tournament") ? " tournament=" + tournamentSize : "")
+         + (threads > 0 ? " parallel=true" : "")
+         + (traits != null ? " traits=" + traitSd : "") + (seeded ? " seed=" + seed : "")
+         + " engine=" + ENGINE_VERSION;
+   }
+
+   // Applies the parameter, selection, threading and pipeline options on
+   // the command line.
+   public void options(String[] args)
+   {
+      String arg = option(args, "--generations");
+      if (arg != null)
+         numGenerations = Integer.parseInt(arg);
+      arg = option(args, "--rounds");
+      if (arg != null)
+         numRounds = Integer.parseInt(arg);
+      arg = option(args, "--death");
+      if (arg != null)
+         deathRate = Double.parseDouble(arg);
+      arg = option(args, "--mutation");
+      if (arg != null)
+         mutationRate = Double.parseDouble(arg);
+      arg = option(args, "--selection");
+      if (arg != null)
+      {
+         if (!Arrays.asList("classic", "proportional", "moran", "fermi", "tournament").contains(arg))
+            throw new IllegalArgumentException("Unknown selection scheme " + arg);
+         selection = arg;
+      }
+      arg = option(args, "--intensity");
+      if (arg != null)
+         intensity = Double.parseDouble(arg);
+      arg = option(args, "--tournament");
+      if (arg != null)
+         tournamentSize = Integer.parseInt(arg);
+      arg = option(args, "--threads");
+      if (arg != null)
+         threads = Integer.parseInt(arg);
+      arg = option(args, "--pipeline");
+      if (arg != null)
+         pipelineDepth = Integer.parseInt(arg);
+   }
+
+   // Runs the game from its initial rates for numGenerations generations,
+   // and returns the summary of the run.
+   // Options:
+   //    --seed <n>          make the run reproducible
+   //    --generations <n>, --rounds <n>, --death <rate>, --mutation <rate>
+   //                        override the game's parameters
+   //    --cache <dir>       reuse the result of an identical earlier seeded run
+   //                        (ignored with --trajectory, --status, --control,
+   //                        --histogram or --genealogy)
+   //    --trajectory <file> record the type counts of every generation
+   //    --genealogy         track and report the ancestry of every agent
+   //    --selection <name>  classic, proportional, moran, fermi or tournament
+   //    --intensity <b>     selection intensity for fermi
+   //    --tournament <k>    tournament size for tournament
+   //    --threads <n>       build and draw the classic selection in parallel
+   //    --pipeline <depth>  generate rounds of draws ahead on another thread
+   //    --status <file>     publish the live state of the run to a mapped file
+   //    --control <file>    apply parameter changes written to a file mid-run
+   //    --traits            give agents heritable continuous traits
+   //    --trait-sd <sd>     step of a trait at birth, as a fraction of its range
+   //    --histogram <file>  write the traits' distribution every generation
+   public Properties run(String[] args) throws IOException
+   {
+      String seedArg = option(args, "--seed");
+      if (seedArg != null)
+         seed(Long.parseLong(seedArg));
+      options(args);
+
+      if (Arrays.asList(args).contains("--traits"))
+      {
+         String sd = option(args, "--trait-sd");
+         if (sd != null)
+            traitSd = Double.parseDouble(sd);
+         traits = new Traits(game, numAgents, traitSd, random.split());
+      }
+
+      // Steering can change the game's parameters, so the key is taken now.
+      String config = config();
+      // An unseeded run is a fresh sample every time, so only seeded runs
+      // are cached, and only when no output from every generation is asked for.
+      ResultCache cache = (seeded && cacheable(args)) ? ResultCache.open(args) : null;
+      Properties cached = (cache == null) ? null : cache.get(config);
+      if (cached != null)
+      {
+         traits = null; // only the rates are cached
+         displayPopulation(ResultCache.rates(cached, "rate"), numGenerations - 1);
+         cache.close();
+         return cached;
+      }
+
+      if (Arrays.asList(args).contains("--genealogy"))
+         genealogy = new Genealogy(numAgents, numTypes - 1);
+      if (genealogy != null || traits != null)
+         succession = new Succession(numAgents, numTypes,
+            seeded ? new SplittableRandom(seed ^ TRACKING_SEED) : new SplittableRandom());
+      start(initialRates);
+      status = StatusWriter.open(args, this);
+      if (status != null)
+         status.publish(gen, numRounds, agents, StatusWriter.RUNNING);
+      Control control = Control.open(args);
+      TrajectoryWriter trajectory = TrajectoryWriter.open(args, numTypes);
+      if (trajectory != null)
+         trajectory.write(agents);
+      String histogramFile = option(args, "--histogram");
+      PrintWriter histogram = null;
+      if (traits != null && histogramFile != null)
+      {
+         histogram = new PrintWriter(new BufferedWriter(new FileWriter(histogramFile)));
+         traits.writeHeader(histogram);
+         traits.writeHistograms(histogram, 0, game.typeNames());
+      }
+
+      displayPopulation(popRates, -1);
+      double[] meanRates = new double[numTypes];
+      // The pipeline's and the parallel selection's threads are stopped
+      // even if the run fails, so that long-lived callers don't leak them.
+      startPipeline();
+      try
+      {
+         for (int i = 0; i < numGenerations; i++)
+         {
+            if (control != null)
+               for (String change : control.poll(this))
+               {
+                  if (trajectory != null)
+                     trajectory.event(change);
+                  if (display)
+                     System.out.println("Changed " + change + " from generation "
+                        + (i + 1) + "\n");
+               }
+            displayPopulation(popRates, i);
+            generation();
+            for (int t = 0; t < numTypes; t++)
+               meanRates[t] += popRates[t] / numGenerations;
+            if (trajectory != null)
+               trajectory.write(agents);
+            if (histogram != null)
+               traits.writeHistograms(histogram, i + 1, game.typeNames());
+         }
+      }
+      finally
+      {
+         stopPipeline();
+         stopThreads();
+      }
+      if (histogram != null)
+         histogram.close();
+      if (status != null)
+         status.publish(gen, numRounds, agents, StatusWriter.FINISHED);
+
+      Properties summary = ResultCache.summary(popRates, meanRates);
+      if (trajectory != null)
+      {
+         trajectory.close();
+         summary.setProperty("trajectory", option(args, "--trajectory"));
+      }
+      if (cache != null)
+         cache.put(config, summary);
+      if (genealogy != null)
+         displayGenealogy();
+      return summary;
+   }
+}
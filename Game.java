@@ -0,0 +1,121 @@
+// FDT in an Evolutionary Environment
+// A game played by the agents of an evolving population. The game decides
+// what each agent earns; Evolution handles everything else.
+
+import java.util.*;
+
+public interface Game
+{
+   // The number of agent types. Agents are typed 0 to numTypes() - 1, and
+   // FDT is always the last type.
+   int numTypes();
+
+   // The name of each type, as displayed.
+   String[] typeNames();
+
+   // Called at the start of every generation, before any rounds are played.
+   // Games precompute their decisions for the current population here.
+   void prepare(double[] popRates);
+
+   // Plays one round, adding the utility each agent earns to utilities.
+   // counts[t] is the number of agents of type t in the population. All
+   // randomness must come from draws, so that it can be generated early.
+   void play(int[] population, int[] counts, double[] utilities, Draws draws);
+
+   // Whether each round needs a random ordering of the agents to pair them.
+   default boolean pairs()
+   {
+      return false;
+   }
+
+   // Changes one of the game's parameters mid-run, using the same names and
+   // formats as config(). Returns false if the game has no such parameter,
+   // and throws IllegalArgumentException if the value is invalid.
+   default boolean steer(String name, String value)
+   {
+      return false;
+   }
+
+   // Changes several parameters at once. Games whose parameters are checked
+   // against each other, like payoffs, override this to check the new
+   // values together and change nothing if any is invalid.
+   default boolean steer(String[] names, String[] values)
+   {
+      for (int i = 0; i < names.length; i++)
+         if (!steer(names[i], values[i]))
+            return false;
+      return true;
+   }
+
+   // The current value of every parameter that steer accepts, by name, in
+   // the format steer takes.
+   default Map<String, String> parameters()
+   {
+      return new LinkedHashMap<>();
+   }
+
+   // The names of the game's continuous traits, for runs with "--traits"
+   // (see Traits).
+   default String[] traitNames()
+   {
+      return new String[0];
+   }
+
+   // The range and starting value of a trait, as {min, max, initial}.
+   default double[] trait(int i)
+   {
+      throw new IndexOutOfBoundsException("Trait " + i);
+   }
+
+   // Hands the game each agent's trait values, as values[trait][slot],
+   // before a generation is played. Without traits, this is never called.
+   default void traits(double[][] values)
+   {
+   }
+
+   // The names of the game's decision values, as reported in the status
+   // region (see StatusWriter).
+   default String[] decisionNames()
+   {
+      return new String[0];
+   }
+
+   // Fills in the current decision values, in the order of decisionNames().
+   default void decisions(double[] values)
+   {
+   }
+
+   // Batched replicates (see Replicates) are stored interleaved: agent k of
+   // replicate r is at index k * replicates + r, and so is type k's count
+   // or rate. Games that support batching override both methods, and
+   // batches() to say so.
+
+   default boolean batches()
+   {
+      return false;
+   }
+
+   // Called at the start of every generation of a batch.
+   default void prepareBatch(int replicates, double[] popRates)
+   {
+      throw new UnsupportedOperationException(getClass().getName()
+         + " does not support batched replicates");
+   }
+
+   // Plays one round in every replicate of a batch. uniforms holds one
+   // uniform double per agent, laid out like the agents themselves.
+   default void playBatch(int replicates, int[] population, int[] counts,
+      double[] utilities, double[] uniforms)
+   {
+      throw new UnsupportedOperationException(getClass().getName()
+         + " does not support batched replicates");
+   }
+
+   // Describes the game's parameters, for use as part of a cache key.
+   String config();
+
+   // Displays any game state worth showing alongside the population.
+   default void display(double[] popRates)
+   {
+   }
+}
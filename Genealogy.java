@@ -0,0 +1,335 @@
+// FDT in an Evolutionary Environment
+// Optional genealogy tracking. Every birth and mutation creates a node that
+// points at its parent's node, and every agent holds the node of its own
+// lineage. Nodes are kept in primitive arrays and pruned down to the
+// ancestry of the living population, so memory stays bounded by a small
+// multiple of the population size no matter how many generations run.
+//
+// Mutations to the focal type (e.g. FDT) found new mutant lineages, whose
+// survival is tracked to give the mutant-lineage survival curve.
+
+import java.util.*;
+
+public class Genealogy
+{
+   // Prune once the number of nodes exceeds this multiple of the population.
+   static final int PRUNE_FACTOR = 4;
+
+   private final int numAgents, focalType;
+
+   // Node storage: the parent node (-1 for none), the generation at which
+   // the node branched off its parent, its type, and its mutant lineage.
+   private int[] parent, birth, lineage;
+   private byte[] type;
+   private int size = 0;
+
+   // The node held by the agent in each slot of the population, and the
+   // buffer the next generation's nodes are gathered into.
+   private int[] nodeOf, nextNodeOf;
+   // Whether each survivor or newborn already fills a slot, so that
+   // further slots it fills are clones.
+   private boolean[] taken;
+   // The parent nodes of the children born during the current generation.
+   private int[] births = new int[16];
+   private int numBirths = 0;
+   private int gen = 0;
+
+   // Mutant lineages: founding generation and number of living members.
+   // Ids of extinct lineages are reused, so at most numAgents are live.
+   private int[] founded = new int[16], members = new int[16];
+   private int[] free = new int[16];
+   private int numLineages = 0, numFree = 0;
+   // Lineages founded in each generation, and extinct lineages by the
+   // number of generations they survived.
+   private int[] foundedAt = new int[16], survivedFor = new int[16];
+
+   public Genealogy(int numAgents, int focalType)
+   {
+      this.numAgents = numAgents;
+      this.focalType = focalType;
+      int capacity = 2 * numAgents;
+      parent = new int[capacity];
+      birth = new int[capacity];
+      lineage = new int[capacity];
+      type = new byte[capacity];
+      nodeOf = new int[numAgents];
+      nextNodeOf = new int[numAgents];
+      taken = new boolean[2 * numAgents];
+   }
+
+   // Creates a node and returns its index.
+   private int node(int p, int t, int l)
+   {
+      if (size == parent.length)
+      {
+         int capacity = 2 * size;
+         parent = Arrays.copyOf(parent, capacity);
+         birth = Arrays.copyOf(birth, capacity);
+         lineage = Arrays.copyOf(lineage, capacity);
+         type = Arrays.copyOf(type, capacity);
+      }
+      parent[size] = p;
+      birth[size] = gen;
+      type[size] = (byte)t;
+      lineage[size] = l;
+      return size++;
+   }
+
+   // Returns a free mutant lineage id founded this generation.
+   private int found()
+   {
+      int id;
+      if (numFree > 0)
+         id = free[--numFree];
+      else
+      {
+         if (numLineages == founded.length)
+         {
+            founded = Arrays.copyOf(founded, 2 * numLineages);
+            members = Arrays.copyOf(members, 2 * numLineages);
+         }
+         id = numLineages++;
+      }
+      founded[id] = gen;
+      members[id] = 1;
+      foundedAt = grow(foundedAt, gen);
+      foundedAt[gen]++;
+      return id;
+   }
+
+   // Makes sure index i is valid in a histogram, growing it if needed.
+   private static int[] grow(int[] array, int i)
+   {
+      return (i < array.length) ? array : Arrays.copyOf(array, Math.max(i + 1, 2 * array.length));
+   }
+
+   // Every agent in the initial population starts its own root lineage.
+   public void start(int[] population)
+   {
+      for (int k = 0; k < numAgents; k++)
+         nodeOf[k] = node(-1, population[k], -1);
+   }
+
+   // The agent in slot k mutates into the given type.
+   public void mutate(int k, int t)
+   {
+      int old = nodeOf[k];
+      if (type[old] == t)
+         return;
+      int l = (t == focalType) ? found() : -1;
+      nodeOf[k] = node(old, t, l);
+   }
+
+   // The agent in slot k has a child.
+   public void birth(int k)
+   {
+      if (numBirths == births.length)
+         births = Arrays.copyOf(births, 2 * numBirths);
+      births[numBirths++] = nodeOf[k];
+   }
+
+   // Ends the generation. Each slot of the new population takes the node
+   // of the survivor that Succession chose for it, or a new node under the
+   // parent of its newborn. A survivor or newborn that fills more than one
+   // slot is cloned, and a fresh agent starts a new root.
+   public void next(int[] population, int[] source)
+   {
+      gen++;
+      if (taken.length < numAgents + numBirths)
+         taken = new boolean[numAgents + numBirths];
+      for (int k = 0; k < numAgents; k++)
+      {
+         int c = source[k], n;
+         if (c < 0)
+            n = node(-1, population[k], -1);
+         else
+         {
+            n = (c < numAgents) ? nodeOf[c] : births[c - numAgents];
+            if (c >= numAgents || taken[c])
+               n = node(n, type[n], lineage[n]);
+            taken[c] = true;
+         }
+         nextNodeOf[k] = n;
+      }
+      int[] swap = nodeOf;
+      nodeOf = nextNodeOf;
+      nextNodeOf = swap;
+      Arrays.fill(taken, 0, numAgents + numBirths, false);
+      numBirths = 0;
+
+      countLineages();
+      if (size > PRUNE_FACTOR * numAgents)
+         prune();
+   }
+
+   // Recounts the living members of every mutant lineage, and records
+   // the lineages that went extinct this generation.
+   private void countLineages()
+   {
+      for (int id = 0; id < numLineages; id++)
+         if (members[id] > 0)
+            members[id] = 0;
+         else
+            members[id] = -1; // already extinct
+      for (int k = 0; k < numAgents; k++)
+      {
+         int l = lineage[nodeOf[k]];
+         if (l >= 0)
+            members[l]++;
+      }
+      for (int id = 0; id < numLineages; id++)
+         if (members[id] == 0)
+         {
+            int age = gen - founded[id] - 1;
+            survivedFor = grow(survivedFor, age);
+            survivedFor[age]++;
+            if (numFree == free.length)
+               free = Arrays.copyOf(free, 2 * numFree);
+            free[numFree++] = id;
+         }
+   }
+
+   // Keeps only the ancestry of the living population. Ancestors with a
+   // single surviving line of descent are spliced out; the node below
+   // takes over their branching generation, so coalescence times are kept.
+   private void prune()
+   {
+      // Count, for each node, the living agents holding it and the
+      // distinct reachable children it has.
+      int[] children = new int[size];
+      boolean[] held = new boolean[size], reached = new boolean[size];
+      for (int k = 0; k < numAgents; k++)
+      {
+         held[nodeOf[k]] = true;
+         for (int n = nodeOf[k]; n >= 0 && !reached[n]; n = parent[n])
+         {
+            reached[n] = true;
+            if (parent[n] >= 0)
+               children[parent[n]]++;
+         }
+      }
+      for (int n = 0; n < size; n++)
+      {
+         if (!reached[n])
+            continue;
+         int p = parent[n];
+         while (p >= 0 && !held[p] && children[p] == 1)
+         {
+            birth[n] = birth[p];
+            p = parent[p];
+         }
+         parent[n] = p;
+      }
+
+      // Compact the remaining ancestry into the front of the arrays.
+      // Parents always have lower indices than their children, so a single
+      // forward pass can remap every parent pointer.
+      Arrays.fill(reached, false);
+      for (int k = 0; k < numAgents; k++)
+         for (int n = nodeOf[k]; n >= 0 && !reached[n]; n = parent[n])
+            reached[n] = true;
+      int[] remap = children;
+      int next = 0;
+      for (int n = 0; n < size; n++)
+      {
+         if (!reached[n])
+            continue;
+         remap[n] = next;
+         parent[next] = (parent[n] >= 0) ? remap[parent[n]] : -1;
+         birth[next] = birth[n];
+         type[next] = type[n];
+         lineage[next] = lineage[n];
+         next++;
+      }
+      for (int k = 0; k < numAgents; k++)
+         nodeOf[k] = remap[nodeOf[k]];
+      size = next;
+   }
+
+   // Returns the generation at which the lineages of the agents in the given
+   // slots coalesce into their most recent common ancestor, or -1 if they
+   // descend from different members of the initial population.
+   public int coalescence(int[] slots)
+   {
+      // Walk from the first agent to its root, numbering the path.
+      int[] seen = new int[size]; // path position + 1, or -1 if off the path
+      int length = 0;
+      for (int n = nodeOf[slots[0]]; n >= 0; n = parent[n])
+         seen[n] = ++length;
+      int[] path = new int[length];
+      for (int n = nodeOf[slots[0]], i = 0; n >= 0; n = parent[n])
+         path[i++] = n;
+
+      // Every other agent walks up until it meets the path (or a node that
+      // already met it). The common ancestor is the highest meeting point.
+      int top = 0;
+      int[] entry = new int[length]; // earliest branching into each path node
+      Arrays.fill(entry, Integer.MAX_VALUE);
+      for (int s = 1; s < slots.length; s++)
+      {
+         int n = nodeOf[slots[s]], below = -1;
+         while (n >= 0 && seen[n] == 0)
+         {
+            seen[n] = -1;
+            below = n;
+            n = parent[n];
+         }
+         if (n < 0)
+            return -1;
+         if (seen[n] > 0)
+         {
+            int q = seen[n] - 1;
+            top = Math.max(top, q);
+            if (below >= 0)
+               entry[q] = Math.min(entry[q], birth[below]);
+         }
+      }
+
+      // Going back in time, the last two lines merge when the earliest
+      // branch into the ancestor joins it.
+      int merge = entry[top];
+      if (top > 0)
+         merge = Math.min(merge, birth[path[top - 1]]);
+      return (merge == Integer.MAX_VALUE) ? gen : merge;
+   }
+
+   // Returns the generation at which the whole population coalesces, or -1
+   // if it hasn't yet.
+   public int coalescence()
+   {
+      int[] slots = new int[numAgents];
+      for (int k = 0; k < numAgents; k++)
+         slots[k] = k;
+      return coalescence(slots);
+   }
+
+   // Returns the survival curve of mutant lineages: entry a is the fraction
+   // of lineages founded at least a generations ago that survived a
+   // generations.
+   public double[] survival()
+   {
+      int[] reachedAge = new int[gen + 1];
+      for (int age = 0; age < survivedFor.length && age <= gen; age++)
+         reachedAge[age] += survivedFor[age];
+      for (int id = 0; id < numLineages; id++)
+         if (members[id] > 0)
+            reachedAge[gen - founded[id]]++;
+      double[] curve = new double[gen + 1];
+      long survivors = 0, eligible = 0;
+      for (int age = gen; age >= 0; age--)
+      {
+         // Lineages that survived at least this many generations, out of
+         // those founded long enough ago to have done so.
+         survivors += reachedAge[age];
+         if (gen - age < foundedAt.length)
+            eligible += foundedAt[gen - age];
+         curve[age] = (eligible == 0) ? 0 : (double)survivors / eligible;
+      }
+      return curve;
+   }
+
+   public int size()
+   {
+      return size;
+   }
+}
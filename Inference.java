@@ -0,0 +1,438 @@
+// FDT in an Evolutionary Environment
+// Infers which parameters reproduce an observed trajectory, by approximate
+// Bayesian computation with sequential Monte Carlo (ABC-SMC). Each
+// population of particles is a weighted sample of parameter sets whose
+// simulated population rates stayed within a tolerance of the observed ones;
+// the tolerance shrinks from one population to the next, and the last
+// population approximates the posterior.
+//
+// Proposals are simulated in batches on a pool of threads, each reusing one
+// engine, so a simulation runs the usual setPopulation/play/repopulate
+// generations. The distance to the observed rates only grows as a
+// simulation goes on, so it is abandoned as soon as it exceeds the
+// tolerance, which saves most of the work once the tolerance is small.
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Inference
+{
+   static final int PARTICLES = 1000; // particles in each population
+   static final int POPULATIONS = 10; // populations, including the first
+   static final double QUANTILE = 0.5; // of the last distances, as the next tolerance
+   static final double MIN_ACCEPTANCE = 0.01; // stops once proposals are accepted less often
+   static final int BATCH = 64; // proposals simulated in each batch
+
+   // The parameters being inferred, each with a uniform prior, and their
+   // number.
+   private final String[] names;
+   private final double[] min, max;
+   private final int d;
+   // The observed population rates, by generation (0 is the start).
+   private final double[][] observed;
+   private final int generations;
+   private final int numAgents;
+   // Each thread's engine, set up with the game and the engine options,
+   // and the parameters every simulation starts from.
+   private final ThreadLocal<Evolution> engines;
+   private final Map<String, String> template;
+   // Generations simulated, and generations that full simulations would
+   // have taken.
+   private long simulated = 0, full = 0;
+
+   public Inference(String game, String[] options, String[] names, double[] min, double[] max,
+      double[][] observed, int numAgents)
+   {
+      this.names = names;
+      this.min = min;
+      this.max = max;
+      d = names.length;
+      this.observed = observed;
+      generations = observed.length - 1;
+      this.numAgents = numAgents;
+      Evolution engine = engine(game, options);
+      if (observed[0].length != engine.numTypes)
+         throw new IllegalArgumentException("The observed run has " + observed[0].length
+            + " types, but " + game + " has " + engine.numTypes);
+      engines = ThreadLocal.withInitial(() -> engine(game, options).withAgents(numAgents));
+      template = engine.parameters();
+   }
+
+   // Returns an engine for the game, with the engine options.
+   private static Evolution engine(String game, String[] options)
+   {
+      Evolution engine = Evolution.create(game);
+      engine.options(options);
+      // The simulations already run in parallel.
+      engine.threads = 0;
+      engine.pipelineDepth = 0;
+      engine.display = false;
+      return engine;
+   }
+
+   // Simulates a parameter set from the observed start, and returns the
+   // root mean squared distance of its rates from the observed rates, and
+   // the generations simulated. Returns an infinite distance as soon as the
+   // tolerance is exceeded, or NaN if the parameters are invalid.
+   //
+   // The engine is reused, so every parameter is set back to the template
+   // before the particle's values are applied, all in one change that is
+   // checked as a whole. With the engine's draws reset by seed(), the
+   // result then doesn't depend on what the thread simulated before.
+   public double[] simulate(double[] theta, long seed, double tolerance)
+   {
+      Evolution engine = engines.get();
+      Map<String, String> parameters = new LinkedHashMap<>(template);
+      for (int k = 0; k < d; k++)
+      {
+         parameters.remove(names[k]);
+         parameters.put(names[k], Double.toString(theta[k]));
+      }
+      try
+      {
+         engine.steer(parameters.keySet().toArray(new String[0]),
+            parameters.values().toArray(new String[0]));
+      }
+      catch (IllegalArgumentException e)
+      {
+         return new double[] {Double.NaN, 0};
+      }
+      engine.seed(seed);
+      engine.start(observed[0]);
+
+      double sum = 0, limit = tolerance * tolerance * generations;
+      for (int g = 1; g <= generations; g++)
+      {
+         engine.generation();
+         for (int t = 0; t < engine.numTypes; t++)
+         {
+            double diff = (double)engine.agents[t] / numAgents - observed[g][t];
+            sum += diff * diff;
+         }
+         if (sum > limit)
+            return new double[] {Double.POSITIVE_INFINITY, g};
+      }
+      return new double[] {Math.sqrt(sum / generations), generations};
+   }
+
+   // Runs ABC-SMC and returns the final population: row i holds particle
+   // i's weight, its distance, then its parameters.
+   public double[][] run(int n, int populations, double quantile, double minAcceptance,
+      int threads, int batch, SplittableRandom random) throws Exception
+   {
+      double[] theta = new double[n * d], weights = new double[n], distances = new double[n];
+      double[] nextTheta = new double[n * d], nextWeights = new double[n];
+      double[] nextDistances = new double[n];
+      double[] sd = new double[d], cumulative = new double[n];
+      double tolerance = Double.POSITIVE_INFINITY;
+      int done = 0;
+
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try
+      {
+         for (int p = 0; p < populations; p++)
+         {
+            if (p > 0)
+            {
+               // The next tolerance is a quantile of the last distances,
+               // and proposals perturb the last particles by a Gaussian
+               // with twice their weighted variance.
+               double[] sorted = distances.clone();
+               Arrays.sort(sorted);
+               tolerance = sorted[Math.min((int)(quantile * n), n - 1)];
+               for (int k = 0; k < d; k++)
+               {
+                  double mean = 0, var = 0;
+                  for (int i = 0; i < n; i++)
+                     mean += weights[i] * theta[i * d + k];
+                  for (int i = 0; i < n; i++)
+                     var += weights[i] * Math.pow(theta[i * d + k] - mean, 2);
+                  sd[k] = Math.max(Math.sqrt(2 * var), 1e-9 * (max[k] - min[k]));
+               }
+               double total = 0;
+               for (int i = 0; i < n; i++)
+                  cumulative[i] = total += weights[i];
+            }
+
+            int accepted = 0;
+            long proposals = 0, maxProposals = (long)Math.ceil(n / minAcceptance);
+            long before = simulated, fullBefore = full;
+            while (accepted < n && proposals < maxProposals)
+            {
+               // Proposals are drawn here in batches of a fixed size, and
+               // accepted in order, so a seeded run doesn't depend on the
+               // number of threads.
+               List<Callable<double[]>> tasks = new ArrayList<>();
+               double[][] proposed = new double[batch][];
+               for (int b = 0; b < batch; b++)
+               {
+                  double[] candidate = (p == 0) ? prior(random) : perturb(theta, cumulative, sd, random);
+                  long seed = random.nextLong();
+                  double limit = tolerance;
+                  proposed[b] = candidate;
+                  tasks.add(() -> simulate(candidate, seed, limit));
+               }
+               List<Future<double[]>> results = pool.invokeAll(tasks);
+               for (int b = 0; b < batch; b++)
+               {
+                  // The rest of the last batch is simulated but not
+                  // counted, as a sequential run would not have made it.
+                  if (accepted == n || proposals == maxProposals)
+                     break;
+                  double[] result = results.get(b).get();
+                  simulated += (long)result[1];
+                  full += generations;
+                  proposals++;
+                  if (!(result[0] <= tolerance))
+                     continue;
+                  System.arraycopy(proposed[b], 0, nextTheta, accepted * d, d);
+                  nextDistances[accepted++] = result[0];
+               }
+            }
+            if (accepted < n)
+            {
+               System.out.println(String.format("Population %d: stopped, %d of %d accepted at "
+                  + "tolerance %.5f", p, accepted, proposals, tolerance));
+               break;
+            }
+
+            // Importance weights: the prior is uniform, so a particle's
+            // weight is inversely proportional to the density it was
+            // proposed from.
+            double sum = 0;
+            for (int i = 0; i < n; i++)
+            {
+               double density = 1;
+               if (p > 0)
+               {
+                  density = 0;
+                  for (int j = 0; j < n; j++)
+                  {
+                     double z = 0;
+                     for (int k = 0; k < d; k++)
+                        z += Math.pow((nextTheta[i * d + k] - theta[j * d + k]) / sd[k], 2);
+                     density += weights[j] * Math.exp(-z / 2);
+                  }
+               }
+               nextWeights[i] = 1 / density;
+               sum += nextWeights[i];
+            }
+            for (int i = 0; i < n; i++)
+               nextWeights[i] /= sum;
+
+            double[] swap = theta;
+            theta = nextTheta;
+            nextTheta = swap;
+            swap = weights;
+            weights = nextWeights;
+            nextWeights = swap;
+            swap = distances;
+            distances = nextDistances;
+            nextDistances = swap;
+            done++;
+
+            double acceptance = (double)accepted / proposals;
+            System.out.println(String.format("Population %d: tolerance %.5f, accepted %d of %d "
+               + "(%.1f%%), %.1f%% of generations simulated", p, tolerance, accepted, proposals,
+               100 * acceptance, 100.0 * (simulated - before) / (full - fullBefore)));
+            if (acceptance < minAcceptance)
+               break;
+         }
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+      if (done == 0)
+         throw new IllegalStateException("No parameters reproduced the trajectory");
+
+      double[][] posterior = new double[n][];
+      for (int i = 0; i < n; i++)
+      {
+         posterior[i] = new double[d + 2];
+         posterior[i][0] = weights[i];
+         posterior[i][1] = distances[i];
+         System.arraycopy(theta, i * d, posterior[i], 2, d);
+      }
+      return posterior;
+   }
+
+   // Draws a parameter set from the prior.
+   private double[] prior(SplittableRandom random)
+   {
+      double[] candidate = new double[d];
+      for (int k = 0; k < d; k++)
+         candidate[k] = min[k] + (max[k] - min[k]) * random.nextDouble();
+      return candidate;
+   }
+
+   // Draws a particle by weight and perturbs it, until it lands inside the
+   // prior's range.
+   private double[] perturb(double[] theta, double[] cumulative, double[] sd,
+      SplittableRandom random)
+   {
+      int n = cumulative.length;
+      double[] candidate = new double[d];
+      while (true)
+      {
+         int i = Arrays.binarySearch(cumulative, random.nextDouble() * cumulative[n - 1]);
+         i = Math.min((i < 0) ? -i - 1 : i, n - 1);
+         boolean inside = true;
+         for (int k = 0; k < d; k++)
+         {
+            candidate[k] = theta[i * d + k] + sd[k] * random.nextGaussian();
+            inside &= candidate[k] >= min[k] && candidate[k] <= max[k];
+         }
+         if (inside)
+            return candidate;
+      }
+   }
+
+   // Returns the weighted quantile q of column c of the posterior.
+   private static double quantile(double[][] posterior, int c, double q)
+   {
+      double[][] sorted = posterior.clone();
+      Arrays.sort(sorted, Comparator.comparingDouble(row -> row[c]));
+      double total = 0;
+      for (double[] row : sorted)
+      {
+         total += row[0];
+         if (total >= q)
+            return row[c];
+      }
+      return sorted[sorted.length - 1][c];
+   }
+
+   // Usage: java Inference <game> <trajectory> --prior <name>=<min>:<max> [options]
+   // The trajectory is a file written with --trajectory. Each prior names a
+   // parameter that can be steered, such as P, a payoff (W or HIGH), death
+   // or mutation, and gives the range of its uniform prior.
+   // Options:
+   //    --particles <n>       particles in each population (default PARTICLES)
+   //    --populations <n>     populations to run (default POPULATIONS)
+   //    --quantile <q>        quantile of the distances used as the next tolerance
+   //    --min-acceptance <a>  stop once fewer proposals are accepted
+   //    --threads <n>         simulations to run at once
+   //    --batch <n>           proposals simulated in each batch
+   //    --memory <MB>         bound on the memory used by engines and particles
+   //    --agents <n>          agents to simulate (default: as observed)
+   //    --generations <n>     observed generations to match (default: all)
+   //    --seed <n>            makes the inference reproducible
+   //    --out <file>          write the final particles as CSV
+   //    --rounds <n>, --selection <scheme>, ...
+   //                          options of every simulation
+   public static void main(String[] args) throws Exception
+   {
+      String game = args[0];
+      TrajectoryReader reader = new TrajectoryReader(Paths.get(args[1]));
+      List<String> names = new ArrayList<>();
+      List<double[]> ranges = new ArrayList<>();
+      for (int i = 2; i + 1 < args.length; i++)
+         if (args[i].equals("--prior"))
+         {
+            String[] prior = args[i + 1].split("[=:]");
+            if (prior.length != 3)
+               throw new IllegalArgumentException("Expected --prior <name>=<min>:<max>");
+            names.add(prior[0]);
+            ranges.add(new double[] {Double.parseDouble(prior[1]), Double.parseDouble(prior[2])});
+         }
+      if (names.isEmpty())
+         throw new IllegalArgumentException("Give at least one --prior <name>=<min>:<max>");
+      int d = names.size();
+      double[] min = new double[d], max = new double[d];
+      for (int k = 0; k < d; k++)
+      {
+         min[k] = ranges.get(k)[0];
+         max[k] = ranges.get(k)[1];
+      }
+
+      String arg = Evolution.option(args, "--particles");
+      int n = (arg != null) ? Integer.parseInt(arg) : PARTICLES;
+      arg = Evolution.option(args, "--populations");
+      int populations = (arg != null) ? Integer.parseInt(arg) : POPULATIONS;
+      arg = Evolution.option(args, "--quantile");
+      double quantile = (arg != null) ? Double.parseDouble(arg) : QUANTILE;
+      arg = Evolution.option(args, "--min-acceptance");
+      double minAcceptance = (arg != null) ? Double.parseDouble(arg) : MIN_ACCEPTANCE;
+      arg = Evolution.option(args, "--threads");
+      int threads = (arg != null) ? Integer.parseInt(arg)
+         : Runtime.getRuntime().availableProcessors();
+      arg = Evolution.option(args, "--memory");
+      long memory = (arg != null) ? Long.parseLong(arg) << 20 : Runtime.getRuntime().maxMemory() / 2;
+      arg = Evolution.option(args, "--seed");
+      SplittableRandom random = (arg != null) ? new SplittableRandom(Long.parseLong(arg))
+         : new SplittableRandom();
+
+      // The observed rates, from the counts of each generation.
+      int[] counts = reader.counts(0);
+      int observedAgents = 0;
+      for (int count : counts)
+         observedAgents += count;
+      arg = Evolution.option(args, "--generations");
+      int generations = Math.min((arg != null) ? Integer.parseInt(arg) : Integer.MAX_VALUE,
+         reader.generations() - 1);
+      double[][] observed = new double[generations + 1][reader.numTypes()];
+      for (int g = 0; g <= generations; g++)
+      {
+         reader.counts(g, counts);
+         for (int t = 0; t < counts.length; t++)
+            observed[g][t] = (double)counts[t] / observedAgents;
+      }
+      arg = Evolution.option(args, "--agents");
+      int numAgents = (arg != null) ? Integer.parseInt(arg) : observedAgents;
+
+      // Half the memory bound goes to the engines, one per thread, and
+      // half to the two populations of particles.
+      long engineBytes = (long)numAgents * Evolution.BYTES_PER_AGENT;
+      threads = (int)Math.max(1, Math.min(threads, memory / 2 / engineBytes));
+      int maxParticles = (int)Math.min(Integer.MAX_VALUE, memory / 2 / (2 * 8L * (d + 2)));
+      if (n > maxParticles)
+      {
+         System.out.println("Limiting the particles to " + maxParticles + " to fit in memory");
+         n = maxParticles;
+      }
+      arg = Evolution.option(args, "--batch");
+      int batch = (arg != null) ? Integer.parseInt(arg) : BATCH;
+
+      Inference inference = new Inference(game, args, names.toArray(new String[0]), min, max,
+         observed, numAgents);
+      System.out.println("Inferring " + String.join(", ", names) + " for " + game + " from "
+         + args[1]);
+      System.out.println(generations + " generations of " + numAgents + " agents, " + n
+         + " particles, " + threads + " threads");
+      System.out.println("=================================");
+      double[][] posterior = inference.run(n, populations, quantile, minAcceptance, threads,
+         batch, random);
+      System.out.println("=================================");
+      System.out.println(String.format("%.1f%% of generations simulated overall",
+         100.0 * inference.simulated / inference.full));
+      for (int k = 0; k < d; k++)
+      {
+         double mean = 0, var = 0;
+         for (double[] row : posterior)
+            mean += row[0] * row[k + 2];
+         for (double[] row : posterior)
+            var += row[0] * Math.pow(row[k + 2] - mean, 2);
+         System.out.println(String.format("%-10s mean %.5f, sd %.5f, 95%% interval [%.5f, %.5f]",
+            names.get(k), mean, Math.sqrt(var), quantile(posterior, k + 2, 0.025),
+            quantile(posterior, k + 2, 0.975)));
+      }
+      System.out.println();
+
+      String out = Evolution.option(args, "--out");
+      if (out != null)
+         try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(out))))
+         {
+            writer.println("weight,distance," + String.join(",", names));
+            for (double[] row : posterior)
+            {
+               StringBuilder line = new StringBuilder();
+               for (int c = 0; c < row.length; c++)
+                  line.append((c > 0) ? "," : "").append(row[c]);
+               writer.println(line);
+            }
+         }
+   }
+}
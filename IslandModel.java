@@ -0,0 +1,248 @@
+// FDT in an Evolutionary Environment
+// Island model. Each island is a separate process running its own population
+// of one game; every few generations the islands exchange migrants through
+// a coordinator, which also tracks the global population.
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class IslandModel
+{
+   // Misc parameters
+   static final String GAME = "PrisonersDilemma";
+   static final int NUM_ISLANDS = 4;
+   static final int MIGRATION_INTERVAL = 10; // exchange every K generations
+   static final double MIGRATION_RATE = 0.01; // fraction of an island that leaves
+
+   // Islands exchange migrants after generation gen if this returns true.
+   // Both the islands and the coordinator follow the same schedule.
+   public static boolean exchange(int gen, int generations)
+   {
+      return (gen + 1) % MIGRATION_INTERVAL == 0 || gen == generations - 1;
+   }
+
+   // Opens a connection to an address of the form "host:port" (a loopback
+   // or remote TCP socket) or "unix:/path/to/socket" (a Unix-domain socket).
+   public static SocketChannel connect(String address) throws IOException
+   {
+      if (address.startsWith("unix:"))
+         return SocketChannel.open(UnixDomainSocketAddress.of(address.substring(5)));
+      int colon = address.lastIndexOf(':');
+      String host = address.substring(0, colon);
+      int port = Integer.parseInt(address.substring(colon + 1));
+      return SocketChannel.open(new InetSocketAddress(host, port));
+   }
+
+   // Binds a server to the given address. Port 0 picks a free port.
+   public static ServerSocketChannel bind(String address) throws IOException
+   {
+      if (address.startsWith("unix:"))
+      {
+         Path path = Paths.get(address.substring(5));
+         Files.deleteIfExists(path);
+         ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+         server.bind(UnixDomainSocketAddress.of(path));
+         return server;
+      }
+      int colon = address.lastIndexOf(':');
+      String host = address.substring(0, colon);
+      int port = Integer.parseInt(address.substring(colon + 1));
+      ServerSocketChannel server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(host, port));
+      return server;
+   }
+
+   // Returns the address that clients should use to reach a bound server.
+   public static String address(ServerSocketChannel server) throws IOException
+   {
+      SocketAddress local = server.getLocalAddress();
+      if (local instanceof UnixDomainSocketAddress)
+         return "unix:" + ((UnixDomainSocketAddress)local).getPath();
+      InetSocketAddress inet = (InetSocketAddress)local;
+      return inet.getHostString() + ":" + inet.getPort();
+   }
+
+   // Runs a single island: a full population of the game that sends its
+   // type counts and emigrants to the coordinator every exchange, and
+   // replaces the emigrants with the immigrants it receives in return.
+   public static void island(String game, String address, int id, int generations)
+      throws IOException
+   {
+      SocketChannel channel = connect(address);
+      DataOutputStream out = new DataOutputStream(
+         new BufferedOutputStream(Channels.newOutputStream(channel)));
+      DataInputStream in = new DataInputStream(
+         new BufferedInputStream(Channels.newInputStream(channel)));
+      out.writeInt(id);
+      out.flush();
+
+      Evolution engine = Evolution.create(game);
+      int numAgents = engine.numAgents, numTypes = engine.numTypes;
+      int migration = (int)(MIGRATION_RATE * numAgents);
+      int[] indices = new int[numAgents];
+      for (int i = 0; i < numAgents; i++)
+         indices[i] = i;
+      engine.start(engine.initialRates);
+
+      for (int i = 0; i < generations; i++)
+      {
+         engine.generation();
+         if (!exchange(i, generations))
+            continue;
+
+         // The first few shuffled indices are the agents that emigrate.
+         Evolution.shuffleArray(indices, engine.random);
+         int[] population = engine.population, agents = engine.agents;
+         out.writeInt(i);
+         for (int j = 0; j < numTypes; j++)
+            out.writeInt(agents[j]);
+         out.writeInt(migration);
+         for (int j = 0; j < migration; j++)
+            out.writeInt(population[indices[j]]);
+         out.flush();
+
+         // Immigrants take the emigrants' places.
+         int arrivals = in.readInt();
+         for (int j = 0; j < arrivals; j++)
+         {
+            int old = population[indices[j]];
+            int arrival = in.readInt();
+            population[indices[j]] = arrival;
+            agents[old]--;
+            agents[arrival]++;
+         }
+         for (int j = 0; j < numTypes; j++)
+            engine.popRates[j] = (double)agents[j] / numAgents;
+      }
+      channel.close();
+   }
+
+   // Waits for every island to connect, then relays migrants around a ring
+   // (island i sends to island i + 1) and displays the global population.
+   public static void coordinator(String game, ServerSocketChannel server, int islands,
+      int generations) throws IOException
+   {
+      // The coordinator's engine only describes the game; it never runs.
+      Evolution engine = Evolution.create(game);
+      int numTypes = engine.numTypes;
+      DataInputStream[] in = new DataInputStream[islands];
+      DataOutputStream[] out = new DataOutputStream[islands];
+      for (int i = 0; i < islands; i++)
+      {
+         SocketChannel channel = server.accept();
+         DataInputStream input = new DataInputStream(
+            new BufferedInputStream(Channels.newInputStream(channel)));
+         int id = input.readInt();
+         if (id < 0 || id >= islands || in[id] != null)
+            throw new IOException("Unexpected island id " + id);
+         in[id] = input;
+         out[id] = new DataOutputStream(
+            new BufferedOutputStream(Channels.newOutputStream(channel)));
+      }
+
+      double[] popRates = engine.initialRates.clone();
+      engine.displayPopulation(popRates, -1);
+      int[][] migrants = new int[islands][];
+      for (int i = 0; i < generations; i++)
+      {
+         if (!exchange(i, generations))
+            continue;
+
+         // Aggregate the type counts of every island.
+         long[] agents = new long[numTypes];
+         long total = 0;
+         for (int j = 0; j < islands; j++)
+         {
+            int gen = in[j].readInt();
+            if (gen != i)
+               throw new IOException("Island " + j + " is at generation " + gen
+                  + ", expected " + i);
+            for (int k = 0; k < numTypes; k++)
+            {
+               int count = in[j].readInt();
+               agents[k] += count;
+               total += count;
+            }
+            migrants[j] = new int[in[j].readInt()];
+            for (int k = 0; k < migrants[j].length; k++)
+               migrants[j][k] = in[j].readInt();
+         }
+         for (int k = 0; k < numTypes; k++)
+            popRates[k] = (double)agents[k] / total;
+         engine.displayPopulation(popRates, i);
+
+         // Send each island the migrants from its neighbor.
+         for (int j = 0; j < islands; j++)
+         {
+            int[] arrivals = migrants[(j + islands - 1) % islands];
+            out[j].writeInt(arrivals.length);
+            for (int k = 0; k < arrivals.length; k++)
+               out[j].writeInt(arrivals[k]);
+            out[j].flush();
+         }
+      }
+
+      String[] names = engine.game.typeNames();
+      System.out.println("Final global population");
+      System.out.println("=================================");
+      for (int k = 0; k < numTypes; k++)
+         System.out.println("Proportion of " + names[k] + ": " + popRates[k]);
+      server.close();
+   }
+
+   // Starts a coordinator in this process and one local process per island.
+   public static void local(String game, String address, int islands, int generations)
+      throws IOException, InterruptedException
+   {
+      ServerSocketChannel server = bind(address);
+      String bound = address(server);
+      String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+      Process[] processes = new Process[islands];
+      for (int i = 0; i < islands; i++)
+      {
+         ProcessBuilder builder = new ProcessBuilder(java,
+            "-cp", System.getProperty("java.class.path"), "IslandModel", "--game", game,
+            "island", bound, String.valueOf(i), String.valueOf(generations));
+         processes[i] = builder.inheritIO().start();
+      }
+      coordinator(game, server, islands, generations);
+      for (int i = 0; i < islands; i++)
+         if (processes[i].waitFor() != 0)
+            System.err.println("Island " + i + " exited with " + processes[i].exitValue());
+   }
+
+   // Usage:
+   //    java IslandModel [--game <name>] [islands] [generations] [address]
+   //    java IslandModel [--game <name>] coordinator <address> <islands> <generations>
+   //    java IslandModel [--game <name>] island <address> <id> <generations>
+   // An address is "host:port" or "unix:/path/to/socket". Without a mode,
+   // the coordinator and every island run as processes on this host.
+   public static void main(String[] args) throws Exception
+   {
+      String game = GAME;
+      List<String> rest = new ArrayList<>(Arrays.asList(args));
+      int flag = rest.indexOf("--game");
+      if (flag >= 0)
+      {
+         game = rest.get(flag + 1);
+         rest.subList(flag, flag + 2).clear();
+         args = rest.toArray(new String[0]);
+      }
+
+      if (args.length > 0 && args[0].equals("coordinator"))
+         coordinator(game, bind(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+      else if (args.length > 0 && args[0].equals("island"))
+         island(game, args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+      else
+      {
+         int islands = (args.length > 0) ? Integer.parseInt(args[0]) : NUM_ISLANDS;
+         int generations = (args.length > 1) ? Integer.parseInt(args[1])
+            : Evolution.create(game).numGenerations;
+         String address = (args.length > 2) ? args[2] : "127.0.0.1:0";
+         local(game, address, islands, generations);
+      }
+   }
+}
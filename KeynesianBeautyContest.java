@@ -2,36 +2,12 @@ import java.io.*;
 import java.util.*;
 import java.awt.Point;
 
-// Sets up an object to perform weighted random selection on a set of integers
-class RandomCollection
-{
-    private final NavigableMap<Double, Integer> map = new TreeMap<>();
-    private final Random random = new Random();
-    private double total = 0;
-
-    public void add(double weight, Integer result)
-    {
-      if (weight < 0)
-         return;
-      total += weight;
-      map.put(total, result);
-    }
-
-    public Integer next()
-    {
-      double value = random.nextDouble() * total;
-      return map.higherEntry(value).getValue();
-    }
-}
-
-public class KeynesianBeautyContest
+public class KeynesianBeautyContest implements Game
 {
 	// Initial population rates
 	static final double CDT = (double)1/3;
 	static final double RAND = (double)1/3;
 	static final double FDT = (double)1/3;
-	// Track the frequency of each agent. Useful in this game.
-	static int[] agentCounts = new int[3];
 	// Misc parameters
 	static final double FRAC = (double)2/3;
    	static final int NUM_AGENTS = 10000;
@@ -41,18 +17,12 @@ public class KeynesianBeautyContest
    	static final double MUTATION_RATE = 0.001;
 	static final double DISPLAY_RATE = 1000;
 
-	// Randomly shuffles the values in an array.
-	public static void shuffleArray(int[] array)
-	{
-		Random random = new Random();
-		for (int i = array.length - 1; i > 0; i--)
-		{
-			int index = random.nextInt(array.length);
-			int temp = array[index];
-			array[index] = array[i];
-			array[i] = temp;
-		}
-	}
+	// CDT's and FDT's guesses this generation.
+	private double cdt, fdt;
+	private double[] randomGuesses = new double[0];
+	// How far each agent's guess is from the one it solved for, when run
+	// with traits.
+	private double[] bias;
 
 	// Calculates the determinant of a 2x2 matrix.
 	public static double determinant(double[][] matrix)
@@ -100,75 +70,6 @@ public class KeynesianBeautyContest
 		return determinant(matrix1) / determinant(matrix2);
 	}
 
-	// Takes in the current intended population rates, returns an array
-   // representing the population of agents and their types.
-   public static int[] setPopulation(double[] popRates)
-   {
-      int[] population = new int[NUM_AGENTS];
-
-      // Set the population to have a number of each agent
-      // proportional to their population rates.
-      int i, defectors = (int)(popRates[0] * NUM_AGENTS);
-      for(i = 0; i < defectors; i++)
-         population[i] = 0;
-
-      int j, random = (int)(popRates[1] * NUM_AGENTS);
-      for(j = i; j < i + random; j++)
-         population[j] = 1;
-
-      int k, fdt = (int)(popRates[2] * NUM_AGENTS);
-      for(k = j; k < j + fdt; k++)
-         population[k] = 2;
-
-      // Fill in any missing spots randomly,
-      // proportional to the intended population rates.
-      while (k < NUM_AGENTS)
-      {
-         double rand = Math.random();
-         if (0 <= rand && rand < popRates[0])
-         {
-            defectors++;
-            population[k++] = 0;
-         }
-         else if (popRates[0] <= rand && rand < (popRates[0] + popRates[1]))
-         {
-            random++;
-            population[k++] = 1;
-         }
-         else
-         {
-            fdt++;
-            population[k++] = 2;
-         }
-      }
-      // Correct population rate for randomness
-      popRates[0] = (double)defectors / NUM_AGENTS;
-      popRates[1] = (double)random / NUM_AGENTS;
-      popRates[2] = (double)fdt / NUM_AGENTS;
-
-		agentCounts[0] = defectors;
-		agentCounts[1] = random;
-		agentCounts[2] = fdt;
-
-      return population;
-   }
-
-	// Displays the current state of the population this generation
-   public static void displayPopulation(double[] popRates, int gen, double cdt, double fdt)
-   {
-		// Displays population every DISPLAY_RATE generations.
-      if ((gen + 1) % DISPLAY_RATE != 0)
-         return;
-		System.out.println("CDT: " + cdt(popRates));
-		System.out.println("FDT: " + fdt(popRates));
-      System.out.println("Generation " + (gen+1));
-      System.out.println("=================================");
-      System.out.println("Proportion of CDT: " + popRates[0]);
-      System.out.println("Proportion of Random: " + popRates[1]);
-      System.out.println("Proportion of FDT: " + popRates[2]);
-      System.out.println();
-   }
-
 	public static double utility(double avg, double guess)
 	{
 		double error = Math.abs(FRAC * avg - guess);
@@ -177,114 +78,166 @@ public class KeynesianBeautyContest
 		return 1 / error;
 	}
 
-	public static void faceoff(double cdt, double fdt, int[] population, double[] utilities)
+	// Every agent guesses at once: the random agents guess uniformly, and
+	// CDT and FDT guess their precomputed values. Everyone is rewarded for
+	// guessing close to FRAC of the average guess.
+	public void play(int[] population, int[] counts, double[] utilities, Draws draws)
 	{
 		double avg = 0;
-		double[] randomGuesses = new double[agentCounts[1]];
+		if (randomGuesses.length < counts[1])
+			randomGuesses = new double[population.length];
 
 		// Track all the random guesses.
-		for (int i = 0; i < agentCounts[1]; i++)
+		for (int i = 0; i < counts[1]; i++)
 		{
-			double guess = Math.random() * 100;
+			double guess = draws.nextDouble() * 100;
 			randomGuesses[i] = guess;
 			avg += guess;
 		}
 		// Add up the guesses of all the CDT and FDT agents.
-		avg += cdt * agentCounts[0];
-		avg += fdt * agentCounts[2];
-		avg /= NUM_AGENTS;
+		avg += cdt * counts[0];
+		avg += fdt * counts[2];
+		if (bias != null)
+			for (int i = 0; i < population.length; i++)
+				if (population[i] != 1)
+					avg += bias[i];
+		avg /= population.length;
 
 		int index = 0;
-		for (int i = 0; i < NUM_AGENTS; i++)
+		for (int i = 0; i < population.length; i++)
 		{
+			double offset = (bias == null) ? 0 : bias[i];
 			if (population[i] == 0)
-				utilities[i] += utility(avg, cdt);
+				utilities[i] += utility(avg, cdt + offset);
 			else if (population[i] == 1)
-				utilities[i] += utility(avg, randomGuesses[index]);
+				utilities[i] += utility(avg, randomGuesses[index++]);
 			else
-				utilities[i] += utility(avg, fdt);
+				utilities[i] += utility(avg, fdt + offset);
 		}
 	}
 
-	// Based on the earned utilities of the agents, repopulate the population.
-	// Eliminate low utility agents, reproduce high utility agents, mutate,
-	// modify the population rates, and return the new population.
-	public static int[] repopulate (int[] population, double[] popRates, double[] utilities)
+	// CDT's and FDT's guesses in each replicate of a batch, and the average
+	// guess of each replicate this round.
+	private double[] cdts = new double[0], fdts = new double[0], avgs = new double[0];
+
+	public boolean batches()
 	{
-		int death = (int)(DEATH_RATE * NUM_AGENTS);
-		double sum = 0, min = Double.MAX_VALUE;
-
-		// Mutate a small random subset of the population to random types.
-		int mutation = (int)(MUTATION_RATE * NUM_AGENTS);
-		int[] indices = new int[NUM_AGENTS];
-		for (int i = 0; i < NUM_AGENTS; i++)
-			indices[i] = i;
-		shuffleArray(indices);
-		int index = 0;
-		for (int i = 0; i < mutation; i++)
+		return true;
+	}
+
+	public void prepareBatch(int replicates, double[] popRates)
+	{
+		if (cdts.length != replicates)
 		{
-			int old = population[indices[index++]];
-			while (agentCounts[old] == 0)
-				old = population[indices[index++]];
-			int mutant = (int)(Math.random() * 3);
-			agentCounts[old]--;
-			agentCounts[mutant]++;
+			cdts = new double[replicates];
+			fdts = new double[replicates];
+			avgs = new double[replicates];
 		}
-
-		// RandomCollection allows us to perform a random selection of an index,
-		// weighted by the utility earned by the corresponding agent.
-		RandomCollection utilsMap = new RandomCollection();
-		for (int i = 0; i < NUM_AGENTS; i++)
-			utilsMap.add(utilities[i], i);
-		// Randomly choose a set of high-utility agents,
-		// and add more of them to the population.
-		for (int i = 0; i < death; i++)
+		double[] rates = new double[3];
+		for (int r = 0; r < replicates; r++)
 		{
-			int born = population[utilsMap.next()];
-			agentCounts[born]++;
+			for (int t = 0; t < 3; t++)
+				rates[t] = popRates[t * replicates + r];
+			cdts[r] = cdt(rates);
+			fdts[r] = fdt(rates);
 		}
+	}
 
-		// RandomCollection that selects agents proportional
-		// to how *low* their earned utility is.
-		for (int i = 0; i < NUM_AGENTS; i++)
-			utilities[i] = 1 / utilities[i];
-		utilsMap = new RandomCollection();
-		for (int i = 0; i < NUM_AGENTS; i++)
-			utilsMap.add(utilities[i], i);
-		// Randomly choose a set of low-utility agents, and kill them off.
-		for (int i = 0; i < death; i++)
-		{
-			int dead = population[utilsMap.next()];
+	// As in play, but every random agent guesses with the uniform double at
+	// its own position, and the replicates are summed side by side.
+	public void playBatch(int replicates, int[] population, int[] counts,
+		double[] utilities, double[] uniforms)
+	{
+		int numAgents = population.length / replicates;
+		for (int r = 0; r < replicates; r++)
+			avgs[r] = cdts[r] * counts[r] + fdts[r] * counts[2 * replicates + r];
+		for (int k = 0; k < numAgents; k++)
+			for (int r = 0, i = k * replicates; r < replicates; r++, i++)
+				if (population[i] == 1)
+					avgs[r] += uniforms[i] * 100;
+		for (int r = 0; r < replicates; r++)
+			avgs[r] /= numAgents;
+
+		for (int k = 0; k < numAgents; k++)
+			for (int r = 0, i = k * replicates; r < replicates; r++, i++)
+			{
+				int type = population[i];
+				double guess = (type == 0) ? cdts[r] : (type == 1) ? uniforms[i] * 100 : fdts[r];
+				utilities[i] += utility(avgs[r], guess);
+			}
+	}
 
-			while (agentCounts[dead] == 0)
-				dead = population[utilsMap.next()];
+	public int numTypes()
+	{
+		return 3;
+	}
 
-			agentCounts[dead]--;
-		}
+	public String[] typeNames()
+	{
+		return new String[] {"CDT", "Random", "FDT"};
+	}
+
+	// CDT and FDT both solve for their guesses given the population rates.
+	public void prepare(double[] popRates)
+	{
+		cdt = cdt(popRates);
+		fdt = fdt(popRates);
+	}
+
+	// CDT and FDT agents can evolve a bias added to their guesses, starting
+	// from none. Random agents ignore it.
+	public String[] traitNames()
+	{
+		return new String[] {"bias"};
+	}
+
+	public double[] trait(int i)
+	{
+		return new double[] {-10, 10, 0};
+	}
 
-		// Mark the changes in the population.
-		for (int i = 0; i < 3; i++)
-			popRates[i] = (double)agentCounts[i] / NUM_AGENTS;
-		return setPopulation(popRates);
+	public void traits(double[][] values)
+	{
+		bias = values[0];
+	}
+
+	public String[] decisionNames()
+	{
+		return new String[] {"CDT guess", "FDT guess"};
+	}
+
+	public void decisions(double[] values)
+	{
+		values[0] = cdt;
+		values[1] = fdt;
 	}
 
-	public static void main(String[] args)
-   {
-      double[] popRates = {CDT, RAND, FDT};
-      int[] population = setPopulation(popRates);
-
-      displayPopulation(popRates, -1, 50, 50);
-      for (int i = 0; i < NUM_GENERATIONS; i++)
-      {
-         double[] utilities = new double[NUM_AGENTS];
-			double cdt = cdt(popRates);
-			double fdt = fdt(popRates);
-			displayPopulation(popRates, i, cdt, fdt);
-
-         for (int j = 0; j < NUM_ROUNDS; j++)
-             faceoff(cdt, fdt, population, utilities);
-
-         population = repopulate(population, popRates, utilities);
-      }
-   }
+	public void display(double[] popRates)
+	{
+		System.out.println("CDT: " + cdt(popRates));
+		System.out.println("FDT: " + fdt(popRates));
+	}
+
+	public String config()
+	{
+		return "game=KeynesianBeautyContest frac=" + FRAC;
+	}
+
+	// Returns an engine set up with this game's parameters.
+	public static Evolution engine()
+	{
+		Evolution engine = new Evolution(new KeynesianBeautyContest(), NUM_AGENTS);
+		engine.initialRates = new double[] {CDT, RAND, FDT};
+		engine.numGenerations = NUM_GENERATIONS;
+		engine.numRounds = NUM_ROUNDS;
+		engine.deathRate = DEATH_RATE;
+		engine.mutationRate = MUTATION_RATE;
+		engine.displayRate = DISPLAY_RATE;
+		return engine;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		engine().run(args);
+	}
 }
@@ -5,38 +5,16 @@
 import java.io.*;
 import java.util.*;
 
-// Sets up an object to perform weighted random selection on a set of integers
-class RandomCollection
-{
-    private final NavigableMap<Double, Integer> map = new TreeMap<>();
-    private final Random random = new Random();
-    private double total = 0;
-
-    public void add(double weight, Integer result)
-    {
-      if (weight < 0)
-         return;
-      total += weight;
-      map.put(total, result);
-    }
-
-    public Integer next()
-    {
-      double value = random.nextDouble() * total;
-      return map.higherEntry(value).getValue();
-    }
-}
-
-public class NewcombsProblem
+public class NewcombsProblem implements Game
 {
    // Initial population rates.
    static final double CDT = 1;
    static final double FDT = 0;
-   // Prediction rate
-   static double P = 0.99;
+   // Prediction rate, which belongs to each game like the payoffs.
+   double P = 0.99;
    // Payoffs
-   static int HIGH = 10000;
-   static int LOW = 1000;
+   int HIGH = 10000;
+   int LOW = 1000;
    // Misc parameters
    static final int NUM_AGENTS = 3000;
    static final int NUM_GENERATIONS = 200;
@@ -45,9 +23,14 @@ public class NewcombsProblem
    static final double MUTATION_RATE = 0.001;
 	static final double DISPLAY_RATE = 100;
 
+   // FDT's action when both boxes are full, this generation.
+   private int fdt;
+   // How accurately the predictor predicts each agent, when run with traits.
+   private double[] predictability;
+
    // This function will set the payoffs to random integers, w/ HIGH > LOW.
    // It will also set P to be between 0.5 and 1.
-   public static void randomize()
+   public void randomize()
    {
       Random rand = new Random();
       TreeSet<Integer> randomInts = new TreeSet<>();
@@ -64,99 +47,10 @@ public class NewcombsProblem
       //    P = Math.random();
    }
 
-   // Displays the current state of the population this generation
-   public static void displayPopulation(double[] popRates, int gen)
-   {
-		// Displays population every DISPLAY_RATE generations.
-      if ((gen + 1) % DISPLAY_RATE != 0)
-         return;
-      System.out.println("Generation " + (gen+1));
-      System.out.println("=================================");
-      System.out.println("Proportion of CDT: " + popRates[0]);
-      System.out.println("Proportion of FDT: " + popRates[1]);
-      System.out.println();
-   }
-
-   // Randomly shuffles the values in an array.
-   public static void shuffleArray(int[] array)
-   {
-	Random random = new Random();
-	for (int i = array.length - 1; i > 0; i--)
-	{
-		int index = random.nextInt(array.length);
-		int temp = array[index];
-		array[index] = array[i];
-		array[i] = temp;
-	}
-   }
-
-	// Based on the earned utilities of the agents, repopulate the population.
-   // Eliminate low utility agents, reproduce high utility agents, mutate,
-   // modify the population rates, and return the new population.
-   public static int[] repopulate (int[] population, double[] popRates, double[] utilities)
-   {
-      int death = (int)(DEATH_RATE * NUM_AGENTS);
-      int[] agents = new int[2]; // Track the population changes here.
-      double sum = 0, min = Double.MAX_VALUE;
-
-		for (int i = 0; i < NUM_AGENTS; i++)
-			agents[population[i]]++;
-
-		// Mutate a small random subset of the population to random types.
-		int mutation = (int)(MUTATION_RATE * NUM_AGENTS);
-		int[] indices = new int[NUM_AGENTS];
-		for (int i = 0; i < NUM_AGENTS; i++)
-			indices[i] = i;
-		shuffleArray(indices);
-		int index = 0;
-		for (int i = 0; i < mutation; i++)
-		{
-			int old = population[indices[index++]];
-			while (agents[old] == 0)
-				old = population[indices[index++]];
-			int mutant = (int)(Math.random() * 2);
-			agents[old]--;
-			agents[mutant]++;
-		}
-
-      // RandomCollection allows us to perform a random selection of an index,
-      // weighted by the utility earned by the corresponding agent.
-      RandomCollection utilsMap = new RandomCollection();
-      for (int i = 0; i < NUM_AGENTS; i++)
-         utilsMap.add(utilities[i], i);
-      // Randomly choose a set of high-utility agents,
-      // and add more of them to the population.
-      for (int i = 0; i < death; i++)
-      {
-         int born = population[utilsMap.next()];
-         agents[born]++;
-      }
-
-      // RandomCollection that selects agents proportional
-      // to how *low* their earned utility is.
-      for (int i = 0; i < NUM_AGENTS; i++)
-         utilities[i] = 1 / utilities[i];
-      utilsMap = new RandomCollection();
-      for (int i = 0; i < NUM_AGENTS; i++)
-         utilsMap.add(utilities[i], i);
-		// Randomly choose a set of low-utility agents, and kill them off.
-		for (int i = 0; i < death; i++)
-		{
-			int dead = population[utilsMap.next()];;
-			while (agents[dead] == 0)
-				dead = population[utilsMap.next()];
-			agents[dead]--;
-		}
-
-      // Mark the changes in the population.
-      for (int i = 0; i < 2; i++)
-         popRates[i] = (double)agents[i] / NUM_AGENTS;
-      return setPopulation(popRates);
-   }
-
-   public static void faceoff(int[] population, double[] utilities, int k)
+   public void faceoff(int[] population, double[] utilities, int k,
+      int fdt, double p, Draws draws)
    {
-      int type = population[k], pred = prediction(type);
+      int type = population[k], pred = prediction(type, fdt, p, draws);
 
       // CDT agent
       if (type == 0)
@@ -178,7 +72,7 @@ public class NewcombsProblem
          // If FDT decides to two-box, it gets both!
          else
          {
-            if (FDT() == 1)
+            if (fdt == 1)
                utilities[k] += HIGH;
             else
                utilities[k] += (HIGH + LOW);
@@ -186,30 +80,31 @@ public class NewcombsProblem
       }
    }
 
-   // Randomly selects the prediciton made by the predictor.
-   public static int prediction(int type)
+   // Randomly selects the prediciton made by the predictor, which is
+   // correct with probability p.
+   public static int prediction(int type, int fdt, double p, Draws draws)
    {
-      double rand = Math.random();
+      double rand = draws.nextDouble();
       // If player is a CDT agent
       if (type == 0)
       {
-         // Return correct prediction with probability P, incorrect otherwise.
-         return (0 <= rand && rand < P) ? 2 : 1;
+         // Return correct prediction with probability p, incorrect otherwise.
+         return (0 <= rand && rand < p) ? 2 : 1;
       }
       // If player is an FDT agent
       else
       {
-         // Return correct prediction with probability P, incorrect otherwise.
-         if (0 <= rand && rand < P)
-            return FDT();
+         // Return correct prediction with probability p, incorrect otherwise.
+         if (0 <= rand && rand < p)
+            return fdt;
          else
-            return (FDT() == 1) ? 2 : 1;
+            return (fdt == 1) ? 2 : 1;
       }
    }
 
    // Determines FDT's action if both boxes are full,
    // given the payoffs and prediction strength.
-   public static int FDT()
+   public int FDT()
    {
       // FDT's utility calculation.
       double one = P * HIGH + (1 - P) * LOW;
@@ -217,65 +112,167 @@ public class NewcombsProblem
       return (one > two) ? 1 : 2;
    }
 
-   // Takes in the current intended population rates, returns an array
-   // representing the population of agents and their types.
-   public static int[] setPopulation(double[] popRates)
+   public int numTypes()
+   {
+      return 2;
+   }
+
+   public String[] typeNames()
+   {
+      return new String[] {"CDT", "FDT"};
+   }
+
+   // FDT's decision doesn't depend on the population,
+   // but the parameters can change between runs.
+   public void prepare(double[] popRates)
    {
-      int[] population = new int[NUM_AGENTS];
+      fdt = FDT();
+   }
 
-      // Set the population to have a number of each agent
-      // proportional to their population rates.
-      int i, cdt = (int)(popRates[0] * NUM_AGENTS);
-      for(i = 0; i < cdt; i++)
-         population[i] = 0;
+   // Every agent faces the predictor once per round.
+   public void play(int[] population, int[] counts, double[] utilities, Draws draws)
+   {
+      for (int k = 0; k < population.length; k++)
+         faceoff(population, utilities, k, fdt,
+            (predictability == null) ? P : predictability[k], draws);
+   }
 
-      int j, fdt = (int)(popRates[1] * NUM_AGENTS);
-      for(j = i; j < i + fdt; j++)
-         population[j] = 1;
+   // P is the prediction rate, and payoffs are "HIGH,LOW" with HIGH > LOW.
+   // Either payoff can also be changed by name, such as "LOW=500".
+   public boolean steer(String name, String value)
+   {
+      return steer(new String[] {name}, new String[] {value});
+   }
 
-      // Fill in any missing spots randomly,
-      // proportional to the intended population rates.
-      while (j < NUM_AGENTS)
+   // The new values are checked together, so both payoffs can change at
+   // once, and nothing changes if any value is invalid.
+   public boolean steer(String[] names, String[] values)
+   {
+      double p = P;
+      int high = HIGH, low = LOW;
+      for (int i = 0; i < names.length; i++)
       {
-         double rand = Math.random();
-         if (0 <= rand && rand < popRates[0])
+         String name = names[i], value = values[i];
+         if (name.equals("P"))
+            p = Double.parseDouble(value);
+         else if (name.equals("payoffs"))
          {
-            cdt++;
-            population[j++] = 0;
+            String[] fields = value.split(",");
+            if (fields.length != 2)
+               throw new IllegalArgumentException("payoffs must be HIGH,LOW");
+            high = Integer.parseInt(fields[0].trim());
+            low = Integer.parseInt(fields[1].trim());
          }
+         else if (name.equals("HIGH"))
+            high = (int)Math.round(Double.parseDouble(value));
+         else if (name.equals("LOW"))
+            low = (int)Math.round(Double.parseDouble(value));
          else
-         {
-            fdt++;
-            population[j++] = 1;
-         }
+            return false;
       }
-      // Correct population rate for randomness
-      popRates[0] = (double)cdt / NUM_AGENTS;
-      popRates[1] = (double)fdt / NUM_AGENTS;
+      if (!(p >= 0 && p <= 1))
+         throw new IllegalArgumentException("P must be between 0 and 1");
+      if (high <= low)
+         throw new IllegalArgumentException("payoffs must have HIGH > LOW");
+      P = p;
+      HIGH = high;
+      LOW = low;
+      return true;
+   }
 
-      return population;
+   public Map<String, String> parameters()
+   {
+      Map<String, String> parameters = new LinkedHashMap<>();
+      parameters.put("P", Double.toString(P));
+      parameters.put("payoffs", HIGH + "," + LOW);
+      return parameters;
    }
 
-   public static void main(String[] args)
+   // How predictable each agent is can evolve, starting from P. FDT still
+   // decides as if every prediction were correct with probability P.
+   public String[] traitNames()
    {
-      double[] popRates = {CDT, FDT};
-      int[] population = setPopulation(popRates);
+      return new String[] {"predictability"};
+   }
 
-      // If uncommented, this line of code will randomly set the payoff values
-      // and prediction accuracy. Otherwise, they maintain their default values.
-      // randomize();
+   public double[] trait(int i)
+   {
+      return new double[] {0, 1, P};
+   }
 
-      displayPopulation(popRates, -1);
-      for (int i = 0; i < NUM_GENERATIONS; i++)
-      {
-         displayPopulation(popRates, i);
-         double[] utilities = new double[NUM_AGENTS];
+   public void traits(double[][] values)
+   {
+      predictability = values[0];
+   }
+
+   public String[] decisionNames()
+   {
+      return new String[] {"FDT boxes taken"};
+   }
+
+   public void decisions(double[] values)
+   {
+      values[0] = fdt;
+   }
+
+   // A faceoff's payoff by type, when the prediction is correct (hit) or
+   // not (miss), for this generation of a batch.
+   private final double[] hit = new double[2], miss = new double[2];
+
+   public boolean batches()
+   {
+      return true;
+   }
 
-         for (int j = 0; j < NUM_ROUNDS; j++)
-            for (int k = 0; k < NUM_AGENTS; k++)
-               faceoff(population, utilities, k);
+   public void prepareBatch(int replicates, double[] popRates)
+   {
+      fdt = FDT();
+      // CDT always two-boxes; it gets both boxes only when mispredicted.
+      hit[0] = LOW;
+      miss[0] = HIGH + LOW;
+      // A one-boxing FDT agent gets HIGH when predicted correctly, and LOW
+      // otherwise. A two-boxing one does exactly what CDT does.
+      hit[1] = (fdt == 1) ? HIGH : LOW;
+      miss[1] = (fdt == 1) ? LOW : HIGH + LOW;
+   }
 
-         population = repopulate(population, popRates, utilities);
+   // The type of an agent doesn't depend on its replicate, so a batch is
+   // played as one flat loop over every agent of every replicate.
+   public void playBatch(int replicates, int[] population, int[] counts,
+      double[] utilities, double[] uniforms)
+   {
+      for (int i = 0; i < population.length; i++)
+      {
+         int type = population[i];
+         utilities[i] += (uniforms[i] < P) ? hit[type] : miss[type];
       }
    }
+
+   public String config()
+   {
+      return "game=NewcombsProblem P=" + P + " payoffs=" + HIGH + "," + LOW;
+   }
+
+   // Returns an engine set up with this game's parameters.
+   public static Evolution engine()
+   {
+      Evolution engine = new Evolution(new NewcombsProblem(), NUM_AGENTS);
+      engine.initialRates = new double[] {CDT, FDT};
+      engine.numGenerations = NUM_GENERATIONS;
+      engine.numRounds = NUM_ROUNDS;
+      engine.deathRate = DEATH_RATE;
+      engine.mutationRate = MUTATION_RATE;
+      engine.displayRate = DISPLAY_RATE;
+      return engine;
+   }
+
+   public static void main(String[] args) throws IOException
+   {
+      Evolution engine = engine();
+      // If uncommented, this line of code will randomly set the payoff values
+      // and prediction accuracy. Otherwise, they maintain their default values.
+      // ((NewcombsProblem)engine.game).randomize();
+
+      engine.run(args);
+   }
 }
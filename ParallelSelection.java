@@ -0,0 +1,220 @@
+// FDT in an Evolutionary Environment
+// Parallel version of the classic selection step, for very large populations.
+// The birth and death weights are computed in one fused pass that builds
+// blocked prefix sums on a fork-join pool, and the draws are split into
+// chunks with their own random streams and made in parallel. A draw binary
+// searches the block totals, then the prefix sums within its block.
+//
+// Blocks and chunks have a fixed size, and the random streams are split off
+// in order before any work is forked, so a seeded run gives the same
+// result with any number of threads.
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+class ParallelSelection
+{
+   static final int BLOCK_SIZE = 1 << 14; // agents per block of prefix sums
+   static final int DRAW_CHUNK = 1 << 12; // draws per random stream
+
+   private final ForkJoinPool pool;
+   private final int numAgents, numBlocks;
+   // Prefix sums of the weights within each block, and the total weight
+   // of the blocks before each block (with the overall total at the end).
+   private final double[] birthSums, deathSums;
+   private final double[] birthStarts, deathStarts;
+   // Per block: agents with no positive utility, and the smallest positive
+   // utility. Those agents need the population-wide floor as a death weight.
+   private final int[] zeros;
+   private final double[] floors;
+   private int[] drawn = new int[0];
+
+   public ParallelSelection(int numAgents, int threads)
+   {
+      this.numAgents = numAgents;
+      numBlocks = (numAgents + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      pool = new ForkJoinPool(threads);
+      birthSums = new double[numAgents];
+      deathSums = new double[numAgents];
+      birthStarts = new double[numBlocks + 1];
+      deathStarts = new double[numBlocks + 1];
+      zeros = new int[numBlocks];
+      floors = new double[numBlocks];
+   }
+
+   // Shuts down the fork-join pool once the engine is done with it.
+   public void close()
+   {
+      pool.shutdown();
+   }
+
+   // Runs body for every index in [lo, hi), splitting the range in half
+   // until each task has a single index.
+   private static class Split extends RecursiveAction
+   {
+      private static final long serialVersionUID = 1L;
+
+      private final int lo, hi;
+      private final IntConsumer body;
+
+      Split(int lo, int hi, IntConsumer body)
+      {
+         this.lo = lo;
+         this.hi = hi;
+         this.body = body;
+      }
+
+      protected void compute()
+      {
+         if (hi - lo == 1)
+            body.accept(lo);
+         else if (hi > lo)
+         {
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Split(lo, mid, body), new Split(mid, hi, body));
+         }
+      }
+   }
+
+   private void forEach(int n, IntConsumer body)
+   {
+      pool.invoke(new Split(0, n, body));
+   }
+
+   // Turns per-block totals (stored in starts[b + 1]) into running totals.
+   private void scan(double[] starts)
+   {
+      starts[0] = 0;
+      for (int b = 0; b < numBlocks; b++)
+         starts[b + 1] += starts[b];
+   }
+
+   // Builds the birth (utility) and death (inverse utility) tables.
+   public void build(double[] utilities)
+   {
+      // One pass over the utilities computes both sets of prefix sums.
+      forEach(numBlocks, b ->
+      {
+         int start = b * BLOCK_SIZE, end = Math.min(start + BLOCK_SIZE, numAgents);
+         double birth = 0, death = 0, floor = Double.MAX_VALUE;
+         int zero = 0;
+         for (int i = start; i < end; i++)
+         {
+            double u = utilities[i];
+            if (u > 0)
+            {
+               birth += u;
+               death += 1 / u;
+               floor = Math.min(floor, u);
+            }
+            else
+               zero++;
+            birthSums[i] = birth;
+            deathSums[i] = death;
+         }
+         birthStarts[b + 1] = birth;
+         deathStarts[b + 1] = death;
+         zeros[b] = zero;
+         floors[b] = floor;
+      });
+      scan(birthStarts);
+
+      // Agents without positive utility die as if they had the smallest
+      // positive utility, like in the sequential selection. This takes a
+      // second pass, but only when there are such agents.
+      int zero = 0;
+      double min = Double.MAX_VALUE;
+      for (int b = 0; b < numBlocks; b++)
+      {
+         zero += zeros[b];
+         min = Math.min(min, floors[b]);
+      }
+      if (zero > 0)
+      {
+         double floor = (min == Double.MAX_VALUE) ? 1 : min;
+         forEach(numBlocks, b ->
+         {
+            int start = b * BLOCK_SIZE, end = Math.min(start + BLOCK_SIZE, numAgents);
+            double death = 0;
+            for (int i = start; i < end; i++)
+            {
+               death += 1 / Math.max(utilities[i], floor);
+               deathSums[i] = death;
+            }
+            deathStarts[b + 1] = death;
+         });
+      }
+      scan(deathStarts);
+   }
+
+   // Finds the agent whose weight covers the given value.
+   private int find(double[] sums, double[] starts, double value)
+   {
+      // The last block starting at or before the value...
+      int low = 0, high = numBlocks - 1;
+      while (low < high)
+      {
+         int mid = (low + high + 1) >>> 1;
+         if (starts[mid] <= value)
+            low = mid;
+         else
+            high = mid - 1;
+      }
+      // ...and the first agent in it whose running total exceeds the value.
+      int block = low;
+      value -= starts[block];
+      low = block * BLOCK_SIZE;
+      high = Math.min(low + BLOCK_SIZE, numAgents) - 1;
+      while (low < high)
+      {
+         int mid = (low + high) >>> 1;
+         if (sums[mid] > value)
+            high = mid;
+         else
+            low = mid + 1;
+      }
+      return low;
+   }
+
+   // Makes count draws with replacement, in parallel, and returns the array
+   // holding them. The array is reused by the next call.
+   private int[] draw(double[] sums, double[] starts, int count, SplittableRandom random)
+   {
+      if (drawn.length < count)
+         drawn = new int[count];
+      int chunks = (count + DRAW_CHUNK - 1) / DRAW_CHUNK;
+      SplittableRandom[] streams = new SplittableRandom[chunks];
+      for (int c = 0; c < chunks; c++)
+         streams[c] = random.split();
+
+      double total = starts[numBlocks];
+      int[] out = drawn;
+      forEach(chunks, c ->
+      {
+         SplittableRandom stream = streams[c];
+         int end = Math.min((c + 1) * DRAW_CHUNK, count);
+         for (int i = c * DRAW_CHUNK; i < end; i++)
+            out[i] = find(sums, starts, stream.nextDouble() * total);
+      });
+      return out;
+   }
+
+   // Draws agents to reproduce, weighted by utility.
+   public int[] births(int count, SplittableRandom random)
+   {
+      return draw(birthSums, birthStarts, count, random);
+   }
+
+   // Draws agents to die, weighted by inverse utility.
+   public int[] deaths(int count, SplittableRandom random)
+   {
+      return draw(deathSums, deathStarts, count, random);
+   }
+
+   // Draws a single agent to die. Used to redraw deaths sequentially.
+   public int death(SplittableRandom random)
+   {
+      return find(deathSums, deathStarts, random.nextDouble() * deathStarts[numBlocks]);
+   }
+}
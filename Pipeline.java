@@ -0,0 +1,102 @@
+// FDT in an Evolutionary Environment
+// Runs the independent stages of a generation on their own threads. A
+// producer fills the random draws of upcoming rounds into a bounded set of
+// recycled buffers, so the draws of the next generation are generated while
+// the current one repopulates. A second thread solves the game's decisions
+// for the next generation as soon as its population rates are known.
+
+import java.util.*;
+import java.util.concurrent.*;
+
+class Pipeline
+{
+   private final ArrayBlockingQueue<Draws> ready, free;
+   private final Thread producer;
+   private final ExecutorService solver;
+
+   // Keeps up to depth rounds of draws ready. Rounds take their streams
+   // from rounds in order, exactly as the sequential engine does.
+   public Pipeline(int depth, int numAgents, boolean pairs, SplittableRandom rounds)
+   {
+      ready = new ArrayBlockingQueue<>(depth);
+      free = new ArrayBlockingQueue<>(depth);
+      for (int i = 0; i < depth; i++)
+         free.add(new Draws(numAgents, pairs, numAgents));
+
+      producer = new Thread(() ->
+      {
+         try
+         {
+            while (true)
+            {
+               Draws draws = free.take();
+               draws.reset(rounds.split(), true);
+               ready.put(draws);
+            }
+         }
+         catch (InterruptedException e)
+         {
+            // Closed.
+         }
+      }, "draws");
+      producer.setDaemon(true);
+      producer.start();
+
+      solver = Executors.newSingleThreadExecutor(task ->
+      {
+         Thread thread = new Thread(task, "solver");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   // Returns the draws of the next round, waiting if they aren't ready.
+   public Draws take()
+   {
+      try
+      {
+         return ready.take();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException(e);
+      }
+   }
+
+   // Hands a used buffer back to the producer.
+   public void recycle(Draws draws)
+   {
+      free.add(draws);
+   }
+
+   // Runs a task on the solver thread.
+   public Future<?> submit(Runnable task)
+   {
+      return solver.submit(task);
+   }
+
+   // Waits for a task submitted to the solver thread.
+   public static void await(Future<?> task)
+   {
+      try
+      {
+         task.get();
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException(e);
+      }
+      catch (ExecutionException e)
+      {
+         throw new IllegalStateException(e.getCause());
+      }
+   }
+
+   public void close()
+   {
+      producer.interrupt();
+      solver.shutdownNow();
+   }
+}
@@ -5,41 +5,20 @@
 import java.io.*;
 import java.util.*;
 
-// Sets up an object to perform weighted random selection on a set of integers
-class RandomCollection
-{
-    private final NavigableMap<Double, Integer> map = new TreeMap<>();
-    private final Random random = new Random();
-    private double total = 0;
-
-    public void add(double weight, Integer result)
-    {
-      if (weight < 0)
-         return;
-      total += weight;
-      map.put(total, result);
-    }
-
-    public Integer next()
-    {
-      double value = random.nextDouble() * total;
-      return map.higherEntry(value).getValue();
-    }
-}
-
-public class PrisonersDilemma
+public class PrisonersDilemma implements Game
 {
    // Initial population rates
    static final double DEF = (double)1/3;
    static final double COOP = (double)1/3;
    static final double FDT = (double)1/3;
-   // Signal strength
-   static final double P = 0.9;
+   // Signal strength. The game's parameters belong to each game, so runs
+   // with different parameters can share a JVM.
+   double P = 0.9;
    // Game payoffs: L < D < C < W
-   static int L = 1;
-   static int D = 4;
-   static int C = 7;
-   static int W = 10;
+   int L = 1;
+   int D = 4;
+   int C = 7;
+   int W = 10;
    // Misc paramters
    static final int NUM_AGENTS = 10000; // must be even
    static final int NUM_GENERATIONS = 1000;
@@ -48,9 +27,14 @@ public class PrisonersDilemma
    static final double MUTATION_RATE = 0.001;
 	static final double DISPLAY_RATE = 100;
 
+   // FDT's policy this generation.
+   private char[] fdt;
+   // Each agent's own signal accuracy, when run with traits.
+   private double[] accuracy;
+
    // Calling this function will set the payoffs to four random values
    // from -1000 to +1000, while still constituting a Prisoner's Dilemma.
-   public static void randomizePayoffs()
+   public void randomizePayoffs()
    {
       Random rand = new Random();
       TreeSet<Integer> randomInts = new TreeSet<>();
@@ -65,95 +49,24 @@ public class PrisonersDilemma
       W = iterator.next();
    }
 
-   // Randomly shuffles the values in an array.
-   public static void shuffleArray(int[] array)
+   // Generates random signal based on opponent's type.
+   // Correct with probability P, incorrect with probability 1 - P
+   public int receiveSignal(int type, Draws draws)
    {
-	Random random = new Random();
-	for (int i = array.length - 1; i > 0; i--)
-	{
-		int index = random.nextInt(array.length);
-		int temp = array[index];
-		array[index] = array[i];
-		array[i] = temp;
-	}
+      return receiveSignal(type, P, draws);
    }
 
-	// Based on the earned utilities of the agents, repopulate the population.
-	// Eliminate low utility agents, reproduce high utility agents, mutate,
-	// modify the population rates, and return the new population.
-	public static int[] repopulate (int[] population, double[] popRates, double[] utilities)
-	{
-		int death = (int)(DEATH_RATE * NUM_AGENTS);
-		int[] agents = new int[3]; // Track the population changes here.
-		double sum = 0, min = Double.MAX_VALUE;
-
-		for (int i = 0; i < NUM_AGENTS; i++)
-			agents[population[i]]++;
-
-		// Mutate a small random subset of the population to random types.
-		int mutation = (int)(MUTATION_RATE * NUM_AGENTS);
-		int[] indices = new int[NUM_AGENTS];
-		for (int i = 0; i < NUM_AGENTS; i++)
-			indices[i] = i;
-		shuffleArray(indices);
-		int index = 0;
-		for (int i = 0; i < mutation; i++)
-		{
-			int old = population[indices[index++]];
-			while (agents[old] == 0)
-				old = population[indices[index++]];
-			int mutant = (int)(Math.random() * 3);
-			agents[old]--;
-			agents[mutant]++;
-		}
-
-		// RandomCollection allows us to perform a random selection of an index,
-		// weighted by the utility earned by the corresponding agent.
-		RandomCollection utilsMap = new RandomCollection();
-		for (int i = 0; i < NUM_AGENTS; i++)
-			utilsMap.add(utilities[i], i);
-		// Randomly choose a set of high-utility agents,
-		// and add more of them to the population.
-		for (int i = 0; i < death; i++)
-		{
-			int born = population[utilsMap.next()];
-			agents[born]++;
-		}
-
-		// RandomCollection that selects agents proportional
-		// to how *low* their earned utility is.
-		for (int i = 0; i < NUM_AGENTS; i++)
-			utilities[i] = 1 / utilities[i];
-		utilsMap = new RandomCollection();
-		for (int i = 0; i < NUM_AGENTS; i++)
-			utilsMap.add(utilities[i], i);
-		// Randomly choose a set of low-utility agents, and kill them off.
-		for (int i = 0; i < death; i++)
-		{
-			int dead = population[utilsMap.next()];;
-			while (agents[dead] == 0)
-				dead = population[utilsMap.next()];
-			agents[dead]--;
-		}
-
-		// Mark the changes in the population.
-		for (int i = 0; i < 3; i++)
-			popRates[i] = (double)agents[i] / NUM_AGENTS;
-		return setPopulation(popRates);
-	}
-
-   // Generates random signal based on opponent's type.
-   // Correct with probability P, incorrect with probability 1 - P
-   public static int receiveSignal(int type)
+   // As above, for a receiver whose signals are correct with probability p.
+   public static int receiveSignal(int type, double p, Draws draws)
    {
-      double rand = Math.random(), mass = (1 - P) / 2;
+      double rand = draws.nextDouble(), mass = (1 - p) / 2;
       int signal;
 
-      // Signals the correct type with probability P, and the
+      // Signals the correct type with probability p, and the
       // chance of error is split evenly between the other two types
-      if (0 <= rand && rand < P)
+      if (0 <= rand && rand < p)
          signal = type;
-      else if (P <= rand && rand < (P + mass))
+      else if (p <= rand && rand < (p + mass))
          signal = (type + 1) % 3;
       else
          signal = (type + 2) % 3;
@@ -162,17 +75,20 @@ public class PrisonersDilemma
    }
 
    // Two agents faceoff in a Prisoner's Dilemma. Based in their types,
-   // we determine what happens and save their utility earned.
-   public static void faceoff
-   (int[] population, double[] utilities, char[] fdt, int x, int y)
+   // we determine what happens and save their utility earned. FDT agents
+   // read signals with their own accuracy, if given, or else with P.
+   public void faceoff(int[] population, double[] utilities,
+      char[] fdt, double[] accuracy, int x, int y, Draws draws)
    {
       int type1 = population[x], type2 = population[y];
+      double p1 = (accuracy == null) ? P : accuracy[x];
+      double p2 = (accuracy == null) ? P : accuracy[y];
 
       // The first agent is FDT
       if (type1 == 2)
       {
          // The signal and fdt policy determine the agent's action
-         char action1 = fdt[receiveSignal(type2)];
+         char action1 = fdt[receiveSignal(type2, p1, draws)];
 
          // FDT vs. Defector
          if (type2 == 0)
@@ -189,7 +105,7 @@ public class PrisonersDilemma
          // FDT vs. FDT
          else
          {
-            char action2 = fdt[receiveSignal(type1)];
+            char action2 = fdt[receiveSignal(type1, p2, draws)];
             // If they output the same action, both cooperate or both defect
             if (action1 == action2)
             {
@@ -207,7 +123,7 @@ public class PrisonersDilemma
       // Only the second agent is FDT
       else if (type2 == 2)
       {
-         char action = fdt[receiveSignal(type1)];
+         char action = fdt[receiveSignal(type1, p2, draws)];
          // FDT vs. Defector
          if (type1 == 0)
          {
@@ -237,7 +153,7 @@ public class PrisonersDilemma
 
    // Returns an array where each index i represents the probability
    // of the opponent being type i, given the signal and base rates.
-   public static double[] bayes(double[] popRates, int signal)
+   public double[] bayes(double[] popRates, int signal)
    {
       // Set up likelihood vector according to the signal.
       double[] likelihood = {(1-P)/2, (1-P)/2, (1-P)/2};
@@ -260,7 +176,7 @@ public class PrisonersDilemma
 
    // Calculates the expected utility of an FDT agent's action
    // given each signal, the current population, and the payoffs.
-   public static char[] FDT(double[] popRates)
+   public char[] FDT(double[] popRates)
    {
       // probability[i][j] represents the probability,
       // given signal i, that the opponent is of type j
@@ -366,100 +282,150 @@ public class PrisonersDilemma
       return fdt;
    }
 
-   // Displays the current state of the population this generation
-   public static void displayPopulation(double[] popRates, int gen)
+   public int numTypes()
+   {
+      return 3;
+   }
+
+   public String[] typeNames()
    {
-      // Displays population every DISPLAY_RATE generations.
-      if ((gen + 1) % DISPLAY_RATE != 0)
+      return new String[] {"Defectors", "Cooperators", "FDT Agents"};
+   }
+
+   // FDT's policy only depends on the population rates,
+   // so it is solved once per generation.
+   public void prepare(double[] popRates)
+   {
+      fdt = FDT(popRates);
+   }
+
+   // FDT's policy, as 1 (cooperate) or 0 (defect) given each signal.
+   public String[] decisionNames()
+   {
+      String[] names = typeNames();
+      for (int i = 0; i < 3; i++)
+         names[i] = "FDT cooperates on signal " + names[i];
+      return names;
+   }
+
+   public void decisions(double[] values)
+   {
+      char[] policy = fdt;
+      if (policy == null)
          return;
-      System.out.println("Generation " + (gen+1));
-      System.out.println("=================================");
-      System.out.println("Proportion of Defectors: " + popRates[0]);
-      System.out.println("Proportion of Cooperators: " + popRates[1]);
-      System.out.println("Proportion of FDT Agents: " + popRates[2]);
-      System.out.println();
+      for (int i = 0; i < 3; i++)
+         values[i] = (policy[i] == 'c') ? 1 : 0;
    }
 
-   // Takes in the current intended population rates, returns an array
-   // representing the population of agents and their types.
-   public static int[] setPopulation(double[] popRates)
+   // Each agent's signal accuracy can evolve, starting from P. FDT's policy
+   // is still solved for P, so it is what agents believe about signals.
+   public String[] traitNames()
    {
-      int[] population = new int[NUM_AGENTS];
+      return new String[] {"accuracy"};
+   }
 
-      // Set the population to have a number of each agent
-      // proportional to their population rates.
-      int i, defectors = (int)(popRates[0] * NUM_AGENTS);
-      for(i = 0; i < defectors; i++)
-         population[i] = 0;
+   public double[] trait(int i)
+   {
+      return new double[] {0, 1, P};
+   }
 
-      int j, cooperators = (int)(popRates[1] * NUM_AGENTS);
-      for(j = i; j < i + cooperators; j++)
-         population[j] = 1;
+   public void traits(double[][] values)
+   {
+      accuracy = values[0];
+   }
+
+   // Agents are paired up in a random order each round.
+   public boolean pairs()
+   {
+      return true;
+   }
+
+   // Have two agents from random indices faceoff.
+   // Add their earned utilities to their respective indices.
+   public void play(int[] population, int[] counts, double[] utilities, Draws draws)
+   {
+      int[] indices = draws.order();
+      for (int k = 0; k + 1 < indices.length; k += 2)
+         faceoff(population, utilities, fdt, accuracy, indices[k], indices[k+1], draws);
+   }
 
-      int k, fdt = (int)(popRates[2] * NUM_AGENTS);
-      for(k = j; k < j + fdt; k++)
-         population[k] = 2;
+   // P is the signal strength, and payoffs are "L,D,C,W" with L < D < C < W.
+   // A single payoff can also be changed by name, such as "W=12".
+   public boolean steer(String name, String value)
+   {
+      return steer(new String[] {name}, new String[] {value});
+   }
 
-      // Fill in any missing spots randomly,
-      // proportional to the intended population rates.
-      while (k < NUM_AGENTS)
+   // The new values are checked together, so several payoffs can change
+   // at once, and nothing changes if any value is invalid.
+   public boolean steer(String[] names, String[] values)
+   {
+      double p = P;
+      int[] payoffs = {L, D, C, W};
+      for (int i = 0; i < names.length; i++)
       {
-         double rand = Math.random();
-         if (0 <= rand && rand < popRates[0])
+         String name = names[i], value = values[i];
+         int index = "LDCW".indexOf(name);
+         if (name.equals("P"))
+            p = Double.parseDouble(value);
+         else if (name.equals("payoffs"))
          {
-            defectors++;
-            population[k++] = 0;
-         }
-         else if (popRates[0] <= rand && rand < (popRates[0] + popRates[1]))
-         {
-            cooperators++;
-            population[k++] = 1;
+            String[] fields = value.split(",");
+            if (fields.length != 4)
+               throw new IllegalArgumentException("payoffs must be L,D,C,W");
+            for (int j = 0; j < 4; j++)
+               payoffs[j] = Integer.parseInt(fields[j].trim());
          }
+         else if (name.length() == 1 && index >= 0)
+            payoffs[index] = (int)Math.round(Double.parseDouble(value));
          else
-         {
-            fdt++;
-            population[k++] = 2;
-         }
+            return false;
       }
-      // Correct population rate for randomness
-      popRates[0] = (double)defectors / NUM_AGENTS;
-      popRates[1] = (double)cooperators / NUM_AGENTS;
-      popRates[2] = (double)fdt / NUM_AGENTS;
+      if (!(p >= 0 && p <= 1))
+         throw new IllegalArgumentException("P must be between 0 and 1");
+      if (!(payoffs[0] < payoffs[1] && payoffs[1] < payoffs[2] && payoffs[2] < payoffs[3]))
+         throw new IllegalArgumentException("payoffs must have L < D < C < W");
+      P = p;
+      L = payoffs[0];
+      D = payoffs[1];
+      C = payoffs[2];
+      W = payoffs[3];
+      return true;
+   }
 
-      return population;
+   public Map<String, String> parameters()
+   {
+      Map<String, String> parameters = new LinkedHashMap<>();
+      parameters.put("P", Double.toString(P));
+      parameters.put("payoffs", L + "," + D + "," + C + "," + W);
+      return parameters;
    }
 
-   public static void main(String[] args)
+   public String config()
    {
-      // Initialize our population rates and the population itself.
-      double[] popRates = {DEF, COOP, FDT};
-      int[] population = setPopulation(popRates);
-      int[] indices = new int[NUM_AGENTS];
-      for (int i = 0; i < NUM_AGENTS; i++)
-         indices[i] = i;
+      return "game=PrisonersDilemma P=" + P + " payoffs=" + L + "," + D + "," + C + "," + W;
+   }
+
+   // Returns an engine set up with this game's parameters.
+   public static Evolution engine()
+   {
+      Evolution engine = new Evolution(new PrisonersDilemma(), NUM_AGENTS);
+      engine.initialRates = new double[] {DEF, COOP, FDT};
+      engine.numGenerations = NUM_GENERATIONS;
+      engine.numRounds = NUM_ROUNDS;
+      engine.deathRate = DEATH_RATE;
+      engine.mutationRate = MUTATION_RATE;
+      engine.displayRate = DISPLAY_RATE;
+      return engine;
+   }
 
+   public static void main(String[] args) throws IOException
+   {
+      Evolution engine = engine();
       // If uncommented, this line of code will randomly set the payoff values.
       // Otherwise, they maintain their default values.
-      // randomizePayoffs();
-
-      displayPopulation(popRates, -1);
-      // Pair off and repopulate agents for NUM_GENERATIONS
-      for (int i = 0; i < NUM_GENERATIONS; i++)
-      {
-			displayPopulation(popRates, i);
-         double[] utilities = new double[NUM_AGENTS];
-         char[] fdt = FDT(popRates);
+      // ((PrisonersDilemma)engine.game).randomizePayoffs();
 
-         // Have random agents face off for NUM_ROUNDS and add up their utilities
-         for (int j = 0; j < NUM_ROUNDS; j++)
-         {
-            shuffleArray(indices);
-            // Have two agents from random indices faceoff.
-            // Add their earned utilities to their respective indices.
-            for (int k = 0; k < NUM_AGENTS; k += 2)
-               faceoff(population, utilities, fdt, indices[k], indices[k+1]);
-         }
-         population = repopulate(population, popRates, utilities);
-      }
+      engine.run(args);
    }
 }
@@ -0,0 +1,55 @@
+// FDT in an Evolutionary Environment
+// Sets up an object to perform weighted random selection on a set of integers.
+// Weights are kept as a running total in primitive arrays, and a selection is
+// a binary search over them, so the collection can be refilled every
+// generation without allocating.
+
+import java.util.*;
+
+class RandomCollection
+{
+   private final double[] totals;
+   private final int[] results;
+   private final SplittableRandom random;
+   private int size = 0;
+   private double total = 0;
+
+   public RandomCollection(int capacity, SplittableRandom random)
+   {
+      totals = new double[capacity];
+      results = new int[capacity];
+      this.random = random;
+   }
+
+   // Empties the collection so that it can be refilled.
+   public void clear()
+   {
+      size = 0;
+      total = 0;
+   }
+
+   public void add(double weight, int result)
+   {
+      if (weight < 0)
+         return;
+      total += weight;
+      totals[size] = total;
+      results[size++] = result;
+   }
+
+   // Returns the first result whose running total exceeds a random value.
+   public int next()
+   {
+      double value = random.nextDouble() * total;
+      int low = 0, high = size - 1;
+      while (low < high)
+      {
+         int mid = (low + high) >>> 1;
+         if (totals[mid] > value)
+            high = mid;
+         else
+            low = mid + 1;
+      }
+      return results[low];
+   }
+}
@@ -0,0 +1,391 @@
+// FDT in an Evolutionary Environment
+// Runs many independent replicates of a small game in lockstep on one core.
+// A batch of replicates is stored as a structure of arrays: every per-agent
+// and per-type array holds the replicates side by side, with agent (or type)
+// k of replicate r at index k * lanes + r. The game and the selection then
+// run over all the replicates at once in flat primitive loops, with no
+// per-replicate objects.
+//
+// Replicates use the classic selection, and only the games that implement
+// the batch methods of Game can be run this way. Each batch draws from its own random
+// stream, so the results are statistically the same as running the
+// replicates one after another with Evolution, but not identical.
+
+import java.io.*;
+import java.util.*;
+
+public class Replicates
+{
+   static final int LANES = 16; // replicates per batch
+   // Run options of Evolution that replicates don't support.
+   static final String[] UNSUPPORTED = {"--intensity", "--tournament", "--threads", "--pipeline",
+      "--cache", "--cache-size", "--trajectory", "--genealogy", "--status", "--control",
+      "--traits", "--trait-sd", "--histogram"};
+
+   final Game game;
+   final int numAgents;
+   final int numTypes;
+   final int lanes;
+   // Misc parameters, copied from the game's engine
+   int numGenerations;
+   int numRounds;
+   double deathRate;
+   double mutationRate;
+   double[] initialRates;
+   final SplittableRandom random;
+
+   // The populations, type counts and population rates of every replicate,
+   // and the rates averaged over the generations so far.
+   final int[] population;
+   final int[] counts;
+   final double[] popRates;
+   final double[] meanRates;
+   // Generations after which every replicate's rates are recorded, in
+   // order, and the rates recorded so far, by checkpoint.
+   int[] checkpoints = new int[0];
+   double[] recorded = new double[0];
+   // Scratch space reused every generation.
+   final double[] utilities;
+   final double[] uniforms;
+   final double[] birthTotals, deathTotals;
+   final double[] floors;
+   final int[] indices;
+
+   // A batch of lanes replicates of the game run by the given engine.
+   public Replicates(Evolution engine, int lanes, SplittableRandom random)
+   {
+      game = engine.game;
+      numAgents = engine.numAgents;
+      numTypes = engine.numTypes;
+      this.lanes = lanes;
+      numGenerations = engine.numGenerations;
+      numRounds = engine.numRounds;
+      deathRate = engine.deathRate;
+      mutationRate = engine.mutationRate;
+      initialRates = engine.initialRates;
+      this.random = random;
+
+      population = new int[numAgents * lanes];
+      counts = new int[numTypes * lanes];
+      popRates = new double[numTypes * lanes];
+      meanRates = new double[numTypes * lanes];
+      utilities = new double[numAgents * lanes];
+      uniforms = new double[numAgents * lanes];
+      birthTotals = new double[numAgents * lanes];
+      deathTotals = new double[numAgents * lanes];
+      floors = new double[lanes];
+      indices = new int[numAgents];
+      for (int i = 0; i < numAgents; i++)
+         indices[i] = i;
+   }
+
+   // Starts every replicate from the initial rates.
+   public void start()
+   {
+      for (int t = 0; t < numTypes; t++)
+         Arrays.fill(popRates, t * lanes, (t + 1) * lanes, initialRates[t]);
+      Arrays.fill(meanRates, 0);
+      for (int r = 0; r < lanes; r++)
+         countPopulation(r);
+      fillPopulation();
+   }
+
+   // Sets the type counts of replicate r proportional to its population
+   // rates, exactly as Evolution does, and corrects the rates to match.
+   private void countPopulation(int r)
+   {
+      int k = 0;
+      for (int t = 0; t < numTypes; t++)
+      {
+         int count = Math.min((int)(popRates[t * lanes + r] * numAgents), numAgents - k);
+         counts[t * lanes + r] = count;
+         k += count;
+      }
+
+      // Fill in any missing spots randomly,
+      // proportional to the intended population rates.
+      for (; k < numAgents; k++)
+      {
+         double rand = random.nextDouble(), mass = popRates[r];
+         int t = 0;
+         while (t < numTypes - 1 && rand >= mass)
+            mass += popRates[++t * lanes + r];
+         counts[t * lanes + r]++;
+      }
+      // Correct population rate for randomness
+      for (int t = 0; t < numTypes; t++)
+         popRates[t * lanes + r] = (double)counts[t * lanes + r] / numAgents;
+   }
+
+   // Lays out each replicate's population with each type's agents side by side.
+   private void fillPopulation()
+   {
+      for (int r = 0; r < lanes; r++)
+      {
+         int k = 0;
+         for (int t = 0; t < numTypes; t++)
+            for (int end = k + counts[t * lanes + r]; k < end; k++)
+               population[k * lanes + r] = t;
+      }
+   }
+
+   // Runs a single generation of every replicate.
+   public void generation()
+   {
+      Arrays.fill(utilities, 0);
+      game.prepareBatch(lanes, popRates);
+      for (int j = 0; j < numRounds; j++)
+      {
+         for (int i = 0; i < uniforms.length; i++)
+            uniforms[i] = random.nextDouble();
+         game.playBatch(lanes, population, counts, utilities, uniforms);
+      }
+      repopulate();
+   }
+
+   // Returns the i-th of a sequence of distinct random agents, by
+   // shuffling only as much of the index array as is needed.
+   private int draw(int i)
+   {
+      int j = i + random.nextInt(numAgents - i);
+      int temp = indices[i];
+      indices[i] = indices[j];
+      indices[j] = temp;
+      return indices[i];
+   }
+
+   // Returns the first agent of replicate r whose running total exceeds
+   // the value.
+   private int find(double[] totals, int r, double value)
+   {
+      int low = 0, high = numAgents - 1;
+      while (low < high)
+      {
+         int mid = (low + high) >>> 1;
+         if (totals[mid * lanes + r] > value)
+            high = mid;
+         else
+            low = mid + 1;
+      }
+      return low;
+   }
+
+   // The classic selection of Evolution, in every replicate: mutation, then
+   // births and deaths drawn with replacement.
+   public void repopulate()
+   {
+      int death = (int)(deathRate * numAgents);
+      int mutation = (int)(mutationRate * numAgents);
+      int last = (numAgents - 1) * lanes;
+
+      // Mutate a small random subset of each population to random types.
+      for (int r = 0; r < lanes; r++)
+      {
+         int index = 0;
+         for (int i = 0; i < mutation; i++)
+         {
+            int k = draw(index++);
+            while (counts[population[k * lanes + r] * lanes + r] == 0)
+               k = draw(index++);
+            counts[population[k * lanes + r] * lanes + r]--;
+            counts[random.nextInt(numTypes) * lanes + r]++;
+         }
+      }
+
+      // The smallest positive utility of each replicate, or 1 if there is
+      // none. Death weights treat lower utilities as this one.
+      Arrays.fill(floors, Double.MAX_VALUE);
+      for (int i = 0; i < utilities.length; i += lanes)
+         for (int r = 0; r < lanes; r++)
+         {
+            double u = utilities[i + r];
+            if (u > 0 && u < floors[r])
+               floors[r] = u;
+         }
+      for (int r = 0; r < lanes; r++)
+         if (floors[r] == Double.MAX_VALUE)
+            floors[r] = 1;
+
+      // Running totals of the birth and death weights, built for every
+      // replicate at once. Negative utilities have no chance of a birth.
+      for (int r = 0; r < lanes; r++)
+      {
+         birthTotals[r] = Math.max(utilities[r], 0);
+         deathTotals[r] = 1 / Math.max(utilities[r], floors[r]);
+      }
+      for (int i = lanes; i < utilities.length; i += lanes)
+         for (int r = 0; r < lanes; r++)
+         {
+            double u = utilities[i + r];
+            birthTotals[i + r] = birthTotals[i - lanes + r] + Math.max(u, 0);
+            deathTotals[i + r] = deathTotals[i - lanes + r] + 1 / Math.max(u, floors[r]);
+         }
+
+      for (int r = 0; r < lanes; r++)
+      {
+         // Randomly choose a set of high-utility agents,
+         // and add more of them to the population.
+         for (int i = 0; i < death; i++)
+         {
+            int parent = find(birthTotals, r, random.nextDouble() * birthTotals[last + r]);
+            counts[population[parent * lanes + r] * lanes + r]++;
+         }
+         // Randomly choose a set of low-utility agents, and kill them off.
+         for (int i = 0; i < death; i++)
+         {
+            int dead = find(deathTotals, r, random.nextDouble() * deathTotals[last + r]);
+            while (counts[population[dead * lanes + r] * lanes + r] == 0)
+               dead = find(deathTotals, r, random.nextDouble() * deathTotals[last + r]);
+            counts[population[dead * lanes + r] * lanes + r]--;
+         }
+      }
+
+      // Mark the changes in the populations.
+      for (int i = 0; i < counts.length; i++)
+         popRates[i] = (double)counts[i] / numAgents;
+      for (int r = 0; r < lanes; r++)
+         countPopulation(r);
+      fillPopulation();
+   }
+
+   // Runs every replicate from its initial rates for numGenerations
+   // generations.
+   public void run()
+   {
+      start();
+      if (recorded.length != checkpoints.length * popRates.length)
+         recorded = new double[checkpoints.length * popRates.length];
+      int next = 0;
+      for (int g = 0; g < numGenerations; g++)
+      {
+         generation();
+         for (int i = 0; i < popRates.length; i++)
+            meanRates[i] += popRates[i] / numGenerations;
+         for (; next < checkpoints.length && checkpoints[next] == g + 1; next++)
+            System.arraycopy(popRates, 0, recorded, next * popRates.length, popRates.length);
+      }
+   }
+
+   // Runs the given number of replicates of an engine's game, lanes at a
+   // time. Row r holds replicate r's final rates, followed by its rates
+   // averaged over the generations.
+   public static double[][] simulate(Evolution engine, int replicates, int lanes,
+      SplittableRandom random)
+   {
+      return simulate(engine, replicates, lanes, random, new int[0]);
+   }
+
+   // As above, with each row followed by the replicate's rates after each
+   // of the given generations, in increasing order.
+   public static double[][] simulate(Evolution engine, int replicates, int lanes,
+      SplittableRandom random, int[] checkpoints)
+   {
+      int numTypes = engine.numTypes;
+      double[][] results = new double[replicates][(2 + checkpoints.length) * numTypes];
+      Replicates batch = null;
+      for (int first = 0; first < replicates; first += lanes)
+      {
+         int width = Math.min(lanes, replicates - first);
+         if (batch == null || batch.lanes != width)
+         {
+            batch = new Replicates(engine, width, random.split());
+            batch.checkpoints = checkpoints;
+         }
+         batch.run();
+         for (int r = 0; r < width; r++)
+            for (int t = 0; t < numTypes; t++)
+            {
+               results[first + r][t] = batch.popRates[t * width + r];
+               results[first + r][numTypes + t] = batch.meanRates[t * width + r];
+               for (int c = 0; c < checkpoints.length; c++)
+                  results[first + r][(2 + c) * numTypes + t]
+                     = batch.recorded[(c * numTypes + t) * width + r];
+            }
+      }
+      return results;
+   }
+
+   // Throws an IllegalArgumentException if the engine's game can't be run
+   // in batches, or if the options ask for something replicates don't do.
+   public static void check(Evolution engine, String[] args)
+   {
+      if (!engine.game.batches())
+         throw new IllegalArgumentException(engine.game.getClass().getName()
+            + " does not support batched replicates");
+      String selection = Evolution.option(args, "--selection");
+      if (selection != null && !selection.equals("classic"))
+         throw new IllegalArgumentException("Replicates use the classic selection, not "
+            + selection);
+      for (String name : UNSUPPORTED)
+         if (Arrays.asList(args).contains(name))
+            throw new IllegalArgumentException(name + " does not apply to replicates");
+   }
+
+   // Writes every replicate's final and mean rates as CSV.
+   public static void write(PrintWriter writer, String[] names, double[][] results)
+   {
+      StringBuilder header = new StringBuilder("replicate");
+      for (String name : names)
+         header.append(",final ").append(name);
+      for (String name : names)
+         header.append(",mean ").append(name);
+      writer.println(header);
+      for (int r = 0; r < results.length; r++)
+      {
+         StringBuilder line = new StringBuilder(Integer.toString(r));
+         for (double rate : results[r])
+            line.append(',').append(rate);
+         writer.println(line);
+      }
+      writer.flush();
+   }
+
+   // Usage: java Replicates <game> <replicates> [options]
+   // Options:
+   //    --lanes <n>        replicates run in lockstep per batch
+   //    --seed <n>         make the runs reproducible
+   //    --out <file>       write every replicate's rates as CSV
+   //    --generations <n>, --rounds <n>, --death <rate>, --mutation <rate>
+   //                       override the game's parameters
+   // The game must support batching, and the other run options of
+   // Evolution are rejected.
+   public static void main(String[] args) throws IOException
+   {
+      Evolution engine = Evolution.create(args[0]);
+      check(engine, args);
+      engine.options(args);
+      int replicates = Integer.parseInt(args[1]);
+      String arg = Evolution.option(args, "--lanes");
+      int lanes = (arg != null) ? Integer.parseInt(arg) : LANES;
+      arg = Evolution.option(args, "--seed");
+      SplittableRandom random = (arg != null)
+         ? new SplittableRandom(Long.parseLong(arg)) : new SplittableRandom();
+
+      double[][] results = simulate(engine, replicates, lanes, random);
+
+      String[] names = engine.game.typeNames();
+      int numTypes = names.length;
+      System.out.println("Replicates: " + replicates);
+      System.out.println("=================================");
+      for (int t = 0; t < numTypes; t++)
+      {
+         double sum = 0, squares = 0;
+         for (double[] row : results)
+         {
+            sum += row[t];
+            squares += row[t] * row[t];
+         }
+         double mean = sum / replicates;
+         double sd = Math.sqrt(Math.max(squares / replicates - mean * mean, 0));
+         System.out.println("Proportion of " + names[t] + ": " + mean + " (sd " + sd + ")");
+      }
+      System.out.println();
+
+      String out = Evolution.option(args, "--out");
+      if (out != null)
+         try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(out))))
+         {
+            write(writer, names, results);
+         }
+   }
+}
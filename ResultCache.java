@@ -0,0 +1,193 @@
+// FDT in an Evolutionary Environment
+// Persistent store of run summaries, keyed by a hash of the full
+// configuration, so that sweeps can skip configurations already simulated.
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ResultCache
+{
+   // Default bound on the total size of the stored summaries, in bytes.
+   static final long MAX_BYTES = 64L * 1024 * 1024;
+   // One lock per cache directory, shared by every store in this JVM. A
+   // file lock is held by the whole JVM, so threads take this one first.
+   private static final Map<Path, Object> LOCKS = new ConcurrentHashMap<>();
+
+   private final Path dir;
+   private final long maxBytes;
+   // Keys read or written by this store, in the order they were used, and
+   // the sizes of the entries it wrote. They are merged into the index on
+   // disk when the store is closed, since other runs may share it.
+   private final LinkedHashSet<String> used = new LinkedHashSet<>();
+   private final Map<String, Long> written = new HashMap<>();
+
+   // Opens the store in the given directory, creating it if necessary.
+   public ResultCache(Path dir, long maxBytes) throws IOException
+   {
+      this.dir = dir;
+      this.maxBytes = maxBytes;
+      Files.createDirectories(dir);
+   }
+
+   // Opens the store named by "--cache <dir>" (bounded by "--cache-size
+   // <bytes>"), or returns null if caching was not requested.
+   public static ResultCache open(String[] args) throws IOException
+   {
+      String dir = Evolution.option(args, "--cache");
+      if (dir == null)
+         return null;
+      String size = Evolution.option(args, "--cache-size");
+      return new ResultCache(Paths.get(dir), (size == null) ? MAX_BYTES : Long.parseLong(size));
+   }
+
+   // Hashes a configuration into the hex SHA-256 key it is stored under.
+   public static String key(String config)
+   {
+      try
+      {
+         MessageDigest digest = MessageDigest.getInstance("SHA-256");
+         byte[] hash = digest.digest(config.getBytes(StandardCharsets.UTF_8));
+         return HexFormat.of().formatHex(hash);
+      }
+      catch (NoSuchAlgorithmException e)
+      {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   // Entries are spread over subdirectories by the first byte of their key.
+   private Path entry(String key)
+   {
+      return dir.resolve(key.substring(0, 2)).resolve(key + ".properties");
+   }
+
+   // Returns the summary stored for this configuration, or null on a miss.
+   public Properties get(String config) throws IOException
+   {
+      String key = key(config);
+      Properties summary = new Properties();
+      try (Reader reader = Files.newBufferedReader(entry(key), StandardCharsets.UTF_8))
+      {
+         summary.load(reader);
+      }
+      catch (NoSuchFileException e)
+      {
+         return null;
+      }
+      // Guard against hash collisions and hand-edited entries.
+      if (!config.equals(summary.getProperty("config")))
+         return null;
+      used.remove(key);
+      used.add(key);
+      return summary;
+   }
+
+   // Stores the summary of a finished run, evicting the least recently
+   // used entries if the store grows past its size bound.
+   public void put(String config, Properties summary) throws IOException
+   {
+      String key = key(config);
+      Path file = entry(key);
+      Files.createDirectories(file.getParent());
+      summary.setProperty("config", config);
+      // Written through a temporary file, so that a concurrent get never
+      // reads a partial entry.
+      Path temp = Files.createTempFile(file.getParent(), key, ".tmp");
+      try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+      {
+         summary.store(writer, null);
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      used.remove(key);
+      used.add(key);
+      written.put(key, Files.size(file));
+      close();
+   }
+
+   // Merges this store's changes into the index on disk. Runs sharing the
+   // directory, in this JVM or others, take turns under a lock, and each
+   // re-reads the index first, so no run's entries are lost. The index is
+   // replaced atomically so that a reader never sees a partial file.
+   public void close() throws IOException
+   {
+      if (used.isEmpty())
+         return;
+      synchronized (LOCKS.computeIfAbsent(dir.toAbsolutePath().normalize(), d -> new Object()))
+      {
+         try (FileChannel channel = FileChannel.open(dir.resolve("lock"),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+         {
+            channel.lock(); // released when the channel is closed
+            // The index holds one "key size" line per entry, in LRU order.
+            LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true);
+            Path file = dir.resolve("index");
+            if (Files.exists(file))
+               for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+               {
+                  String[] fields = line.split(" ");
+                  if (fields.length == 2)
+                     index.put(fields[0], Long.parseLong(fields[1]));
+               }
+            for (String key : used)
+            {
+               Long size = written.containsKey(key) ? written.get(key) : index.get(key);
+               if (size == null && Files.exists(entry(key)))
+                  size = Files.size(entry(key));
+               if (size != null)
+                  index.put(key, size);
+            }
+
+            long totalBytes = 0;
+            for (long size : index.values())
+               totalBytes += size;
+            Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+            while (totalBytes > maxBytes && index.size() > 1)
+            {
+               Map.Entry<String, Long> eldest = iterator.next();
+               Files.deleteIfExists(entry(eldest.getKey()));
+               totalBytes -= eldest.getValue();
+               iterator.remove();
+            }
+
+            StringBuilder lines = new StringBuilder();
+            for (Map.Entry<String, Long> e : index.entrySet())
+               lines.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+            Path temp = Files.createTempFile(dir, "index", ".tmp");
+            Files.write(temp, lines.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+         }
+      }
+      used.clear();
+      written.clear();
+   }
+
+   // Builds the summary of a run from its final and mean population rates.
+   public static Properties summary(double[] popRates, double[] meanRates)
+   {
+      Properties summary = new Properties();
+      for (int i = 0; i < popRates.length; i++)
+      {
+         summary.setProperty("rate." + i, String.valueOf(popRates[i]));
+         summary.setProperty("mean." + i, String.valueOf(meanRates[i]));
+      }
+      return summary;
+   }
+
+   // Reads back the rates stored under the given prefix ("rate" or "mean").
+   public static double[] rates(Properties summary, String prefix)
+   {
+      int n = 0;
+      while (summary.getProperty(prefix + "." + n) != null)
+         n++;
+      double[] rates = new double[n];
+      for (int i = 0; i < n; i++)
+         rates[i] = Double.parseDouble(summary.getProperty(prefix + "." + i));
+      return rates;
+   }
+}
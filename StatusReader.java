@@ -0,0 +1,147 @@
+// FDT in an Evolutionary Environment
+// Attaches to the status region of a running simulation (see StatusWriter)
+// and reads consistent snapshots of its state, without pausing it.
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.lang.invoke.VarHandle;
+import java.util.*;
+
+public class StatusReader
+{
+   private final MappedByteBuffer map;
+   private final int numTypes, numDecisions, numAgents;
+   private final int data;
+   private final String[] typeNames, decisionNames;
+
+   // The latest snapshot.
+   long state, generation, rounds, elapsed, last, updated;
+   final long[] counts;
+   final double[] means, mins, maxs;
+   final double[] decisions;
+
+   public StatusReader(Path file) throws IOException
+   {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+      {
+         map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      map.order(ByteOrder.nativeOrder());
+      if (map.limit() < StatusWriter.HEADER_SIZE || map.getInt(0) != StatusWriter.MAGIC)
+         throw new IOException(file + " is not a status region");
+      if (map.getInt(4) != StatusWriter.VERSION)
+         throw new IOException(file + " has unsupported version " + map.getInt(4));
+      numTypes = map.getInt(8);
+      numDecisions = map.getInt(12);
+      numAgents = map.getInt(16);
+      data = map.getInt(20);
+
+      byte[] names = new byte[map.getInt(24)];
+      map.get(StatusWriter.HEADER_SIZE, names);
+      String[] lines = new String(names, StandardCharsets.UTF_8).split("\n", -1);
+      typeNames = Arrays.copyOfRange(lines, 0, numTypes);
+      decisionNames = Arrays.copyOfRange(lines, numTypes, numTypes + numDecisions);
+
+      counts = new long[numTypes];
+      means = new double[numTypes];
+      mins = new double[numTypes];
+      maxs = new double[numTypes];
+      decisions = new double[numDecisions];
+   }
+
+   // Reads a consistent snapshot, retrying while an update is in progress.
+   public void read()
+   {
+      while (true)
+      {
+         long before = (long)StatusWriter.SLOT.getAcquire(map, data);
+         if ((before & 1) != 0)
+         {
+            Thread.onSpinWait();
+            continue;
+         }
+         state = get(StatusWriter.STATE);
+         generation = get(StatusWriter.GENERATION);
+         rounds = get(StatusWriter.ROUNDS);
+         elapsed = get(StatusWriter.ELAPSED);
+         last = get(StatusWriter.LAST);
+         updated = get(StatusWriter.UPDATED);
+         int slot = StatusWriter.COUNTS;
+         for (int t = 0; t < numTypes; t++)
+            counts[t] = get(slot++);
+         for (int t = 0; t < numTypes; t++)
+         {
+            means[t] = getDouble(slot++);
+            mins[t] = getDouble(slot++);
+            maxs[t] = getDouble(slot++);
+         }
+         for (int d = 0; d < numDecisions; d++)
+            decisions[d] = getDouble(slot++);
+         // The reads above complete before the sequence number is checked.
+         VarHandle.loadLoadFence();
+         if ((long)StatusWriter.SLOT.getOpaque(map, data) == before)
+            return;
+      }
+   }
+
+   private long get(int slot)
+   {
+      return map.getLong(data + 8 * slot);
+   }
+
+   private double getDouble(int slot)
+   {
+      return map.getDouble(data + 8 * slot);
+   }
+
+   // Displays the latest snapshot.
+   public void display(String name)
+   {
+      double seconds = elapsed / 1e9;
+      System.out.println(name + (state == StatusWriter.FINISHED ? " (finished)" : ""));
+      System.out.println("Generation " + generation + ", " + rounds + " rounds in "
+         + String.format("%.1f", seconds) + "s ("
+         + String.format("%.1f", (seconds > 0) ? generation / seconds : 0.0)
+         + " generations/s, last took " + String.format("%.1f", last / 1e6) + "ms)");
+      System.out.println("=================================");
+      for (int t = 0; t < numTypes; t++)
+         System.out.println("Proportion of " + typeNames[t] + ": " + (double)counts[t] / numAgents
+            + " (utility per round " + means[t] + ", " + mins[t] + " to " + maxs[t] + ")");
+      for (int d = 0; d < numDecisions; d++)
+         System.out.println(decisionNames[d] + ": " + decisions[d]);
+      System.out.println();
+   }
+
+   // Usage: java StatusReader <file>... [--watch <seconds>]
+   // Displays the state of each run, repeatedly if asked to watch.
+   public static void main(String[] args) throws IOException, InterruptedException
+   {
+      String watch = Evolution.option(args, "--watch");
+      List<String> files = new ArrayList<>();
+      for (int i = 0; i < args.length; i++)
+      {
+         if (args[i].equals("--watch"))
+            i++;
+         else
+            files.add(args[i]);
+      }
+
+      List<StatusReader> readers = new ArrayList<>();
+      for (String file : files)
+         readers.add(new StatusReader(Paths.get(file)));
+      while (true)
+      {
+         for (int i = 0; i < readers.size(); i++)
+         {
+            readers.get(i).read();
+            readers.get(i).display(files.get(i));
+         }
+         if (watch == null)
+            return;
+         Thread.sleep((long)(Double.parseDouble(watch) * 1000));
+      }
+   }
+}
@@ -0,0 +1,171 @@
+// FDT in an Evolutionary Environment
+// Publishes the live state of a run in a small memory-mapped file, updated
+// after every generation, so that other processes can watch the run without
+// pausing it or parsing its output (see StatusReader). Updates are guarded
+// by a sequence lock: the sequence number is odd while an update is being
+// written, so a reader that sees the same even number before and after its
+// read knows it read a consistent state.
+//
+// File layout (native byte order):
+//    header  magic "FDTS", version, number of types, number of decisions,
+//            number of agents, offset of the data, length of the names,
+//            then the type and decision names, one per line
+//    data    8-byte slots: sequence, state, generation, rounds played,
+//            elapsed and last generation's nanoseconds, update time, then
+//            the count of each type, the mean, min and max utility per
+//            round of each type, and the decision values
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class StatusWriter
+{
+   static final int MAGIC = 0x46445453; // "FDTS"
+   static final int VERSION = 1;
+   static final int HEADER_SIZE = 28;
+   // Data slots
+   static final int SEQUENCE = 0;
+   static final int STATE = 1; // RUNNING or FINISHED
+   static final int GENERATION = 2;
+   static final int ROUNDS = 3;
+   static final int ELAPSED = 4;
+   static final int LAST = 5;
+   static final int UPDATED = 6;
+   static final int COUNTS = 7;
+   static final int RUNNING = 0, FINISHED = 1;
+
+   // Atomic access to the sequence number in the mapped file.
+   static final VarHandle SLOT =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+   private final MappedByteBuffer map;
+   private final int numTypes;
+   private final int data;
+   private final long start = System.nanoTime();
+   private long last = start;
+   private long sequence = 0;
+   // This generation's utility summaries, and the decision values.
+   private final double[] sums, mins, maxs;
+   private final int[] counted;
+   private final double[] decisions;
+
+   public StatusWriter(Path file, Evolution engine) throws IOException
+   {
+      numTypes = engine.numTypes;
+      String[] decisionNames = engine.game.decisionNames();
+      decisions = new double[decisionNames.length];
+      sums = new double[numTypes];
+      mins = new double[numTypes];
+      maxs = new double[numTypes];
+      counted = new int[numTypes];
+
+      StringBuilder text = new StringBuilder();
+      for (String name : engine.game.typeNames())
+         text.append(name).append('\n');
+      for (String name : decisionNames)
+         text.append(name).append('\n');
+      byte[] names = text.toString().getBytes(StandardCharsets.UTF_8);
+      data = (HEADER_SIZE + names.length + 7) & ~7;
+      int size = data + 8 * slots(numTypes, decisions.length);
+
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+         StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+      {
+         map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      }
+      map.order(ByteOrder.nativeOrder());
+      map.putInt(4, VERSION);
+      map.putInt(8, numTypes);
+      map.putInt(12, decisions.length);
+      map.putInt(16, engine.numAgents);
+      map.putInt(20, data);
+      map.putInt(24, names.length);
+      map.put(HEADER_SIZE, names);
+      // The magic goes in last, so a reader never sees a partial header.
+      map.putInt(0, MAGIC);
+   }
+
+   // Opens the file named by "--status <file>", or returns null if no
+   // status region was requested.
+   public static StatusWriter open(String[] args, Evolution engine) throws IOException
+   {
+      String file = Evolution.option(args, "--status");
+      return (file == null) ? null : new StatusWriter(Paths.get(file), engine);
+   }
+
+   // The number of data slots for the given numbers of types and decisions.
+   static int slots(int numTypes, int numDecisions)
+   {
+      return COUNTS + 4 * numTypes + numDecisions;
+   }
+
+   // Summarizes the utilities earned by each type this generation, and
+   // keeps the decisions they were earned under. This has to happen before
+   // the pipeline starts solving the next generation's decisions.
+   public void summarize(int[] population, double[] utilities, int rounds, Game game)
+   {
+      game.decisions(decisions);
+      Arrays.fill(sums, 0);
+      Arrays.fill(mins, Double.MAX_VALUE);
+      Arrays.fill(maxs, -Double.MAX_VALUE);
+      Arrays.fill(counted, 0);
+      for (int i = 0; i < population.length; i++)
+      {
+         int t = population[i];
+         double u = utilities[i] / rounds;
+         sums[t] += u;
+         mins[t] = Math.min(mins[t], u);
+         maxs[t] = Math.max(maxs[t], u);
+         counted[t]++;
+      }
+   }
+
+   // Publishes the state after the given generation, with the decisions
+   // kept by the last summary.
+   public void publish(int gen, int rounds, int[] counts, int state)
+   {
+      long now = System.nanoTime();
+
+      // Mark the update as in progress, and keep the writes that follow
+      // from being seen before that.
+      SLOT.setOpaque(map, data, ++sequence);
+      VarHandle.storeStoreFence();
+      put(STATE, state);
+      put(GENERATION, gen);
+      put(ROUNDS, (long)gen * rounds);
+      put(ELAPSED, now - start);
+      if (state == RUNNING)
+         put(LAST, now - last);
+      put(UPDATED, System.currentTimeMillis());
+      int slot = COUNTS;
+      for (int t = 0; t < numTypes; t++)
+         put(slot++, counts[t]);
+      for (int t = 0; t < numTypes; t++)
+      {
+         boolean any = counted[t] > 0;
+         putDouble(slot++, any ? sums[t] / counted[t] : Double.NaN);
+         putDouble(slot++, any ? mins[t] : Double.NaN);
+         putDouble(slot++, any ? maxs[t] : Double.NaN);
+      }
+      for (double value : decisions)
+         putDouble(slot++, value);
+      // Everything above is visible before the even sequence number.
+      SLOT.setRelease(map, data, ++sequence);
+      last = now;
+   }
+
+   private void put(int slot, long value)
+   {
+      map.putLong(data + 8 * slot, value);
+   }
+
+   private void putDouble(int slot, double value)
+   {
+      map.putDouble(data + 8 * slot, value);
+   }
+}
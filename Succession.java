@@ -0,0 +1,131 @@
+// FDT in an Evolutionary Environment
+// Decides which agent of the old population, or which newborn, fills each
+// slot of the new one. The engine rebuilds the population by type from
+// rounded rates, so agents have no identity of their own; whatever tracks
+// individual agents (Genealogy, Traits) follows them through this one
+// mapping, so that the trackers agree on who is who.
+
+import java.util.*;
+
+public class Succession
+{
+   private final int numAgents, numTypes;
+   private final SplittableRandom random;
+
+   // The type of the agent in each slot, after any mutation.
+   private final int[] typeOf;
+   // Events recorded during the current generation.
+   private final boolean[] dead;
+   private int[] bornType = new int[16];
+   private int numBirths = 0;
+   // The candidates for the new population grouped by type, and where
+   // each slot of the new population comes from.
+   private int[] candidates;
+   private final int[] starts, left;
+   private final int[] source;
+
+   // The random numbers pick which candidates are dropped or cloned when
+   // the events don't match the new population.
+   public Succession(int numAgents, int numTypes, SplittableRandom random)
+   {
+      this.numAgents = numAgents;
+      this.numTypes = numTypes;
+      this.random = random;
+      typeOf = new int[numAgents];
+      dead = new boolean[numAgents];
+      candidates = new int[2 * numAgents];
+      starts = new int[numTypes + 1];
+      left = new int[numTypes];
+      source = new int[numAgents];
+   }
+
+   public void start(int[] population)
+   {
+      System.arraycopy(population, 0, typeOf, 0, numAgents);
+   }
+
+   // The agent in slot k mutates into the given type.
+   public void mutate(int k, int t)
+   {
+      typeOf[k] = t;
+   }
+
+   // The agent in slot k has a child. Children are numbered in the order
+   // of their births.
+   public void birth(int k)
+   {
+      if (numBirths == bornType.length)
+         bornType = Arrays.copyOf(bornType, 2 * numBirths);
+      bornType[numBirths++] = typeOf[k];
+   }
+
+   // The agent in slot k dies.
+   public void death(int k)
+   {
+      dead[k] = true;
+   }
+
+   // Ends the generation, and returns where each slot of the new population
+   // comes from: the slot of a survivor, numAgents plus the number of a
+   // newborn, or -1 for a fresh agent. The survivors and newborns are
+   // matched to slots by type. Where there are more of a type than slots,
+   // random ones are dropped; where there are fewer, random ones are
+   // cloned, so a candidate may fill several slots. A type with no
+   // candidates at all starts afresh.
+   public int[] next(int[] population)
+   {
+      // Group the candidates by type: survivors, then newborns.
+      if (candidates.length < numAgents + numBirths)
+         candidates = new int[numAgents + numBirths];
+      Arrays.fill(starts, 0);
+      for (int k = 0; k < numAgents; k++)
+         if (!dead[k])
+            starts[typeOf[k] + 1]++;
+      for (int i = 0; i < numBirths; i++)
+         starts[bornType[i] + 1]++;
+      for (int t = 0; t < numTypes; t++)
+         starts[t + 1] += starts[t];
+      System.arraycopy(starts, 0, left, 0, numTypes);
+      for (int k = 0; k < numAgents; k++)
+         if (!dead[k])
+            candidates[left[typeOf[k]]++] = k;
+      for (int i = 0; i < numBirths; i++)
+         candidates[left[bornType[i]]++] = numAgents + i;
+
+      // Move the candidates to be dropped to the end of their group. The
+      // rest stay in slot order, so trackers copy mostly in order.
+      Arrays.fill(left, 0);
+      for (int k = 0; k < numAgents; k++)
+         left[population[k]]++;
+      for (int t = 0; t < numTypes; t++)
+      {
+         int size = starts[t + 1] - starts[t];
+         for (int d = 0; d < size - left[t]; d++)
+         {
+            int i = starts[t] + random.nextInt(size - d);
+            int last = starts[t + 1] - 1 - d;
+            int c = candidates[i];
+            candidates[i] = candidates[last];
+            candidates[last] = c;
+         }
+      }
+
+      // Fill each type's slots from its group in order.
+      Arrays.fill(left, 0);
+      for (int k = 0; k < numAgents; k++)
+      {
+         int t = population[k], size = starts[t + 1] - starts[t];
+         if (left[t] < size)
+            source[k] = candidates[starts[t] + left[t]++];
+         else if (size > 0)
+            source[k] = candidates[starts[t] + random.nextInt(size)];
+         else
+            source[k] = -1;
+      }
+
+      System.arraycopy(population, 0, typeOf, 0, numAgents);
+      Arrays.fill(dead, false);
+      numBirths = 0;
+      return source;
+   }
+}
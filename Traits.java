@@ -0,0 +1,172 @@
+// FDT in an Evolutionary Environment
+// Optional heritable continuous traits, such as an agent's own signal
+// accuracy. Each trait is stored as one primitive array indexed by
+// population slot, so millions of agents need no per-agent objects. A
+// newborn inherits its parent's traits, each perturbed by a small Gaussian
+// step, and every generation the values follow the survivors and newborns
+// to their slots in the new population, as given by Succession.
+
+import java.io.*;
+import java.util.*;
+
+public class Traits
+{
+   static final double SD = 0.01; // step at birth, as a fraction of the range
+   static final int BINS = 20; // histogram bins per trait
+
+   private final int numAgents, numTypes, numTraits;
+   private final String[] names;
+   private final double[] min, max, initial, step;
+   private final SplittableRandom random;
+
+   // Trait values by trait and slot, and the buffer the next generation's
+   // values are gathered into.
+   private double[][] values, next;
+   // The type of the agent in each slot.
+   private final int[] typeOf;
+   // The values of the children born during the current generation.
+   private double[][] born;
+   private int numBirths = 0, capacity = 16;
+
+   // Traits with the given standard deviation of the step at birth, as a
+   // fraction of each trait's range.
+   public Traits(Game game, int numAgents, double sd, SplittableRandom random)
+   {
+      this.numAgents = numAgents;
+      this.random = random;
+      numTypes = game.numTypes();
+      names = game.traitNames();
+      numTraits = names.length;
+      min = new double[numTraits];
+      max = new double[numTraits];
+      initial = new double[numTraits];
+      step = new double[numTraits];
+      for (int j = 0; j < numTraits; j++)
+      {
+         double[] trait = game.trait(j);
+         min[j] = trait[0];
+         max[j] = trait[1];
+         initial[j] = trait[2];
+         step[j] = sd * (max[j] - min[j]);
+      }
+
+      values = new double[numTraits][numAgents];
+      next = new double[numTraits][numAgents];
+      born = new double[numTraits][capacity];
+      typeOf = new int[numAgents];
+   }
+
+   // The current values of each trait, indexed by population slot. The
+   // arrays are replaced every generation.
+   public double[][] values()
+   {
+      return values;
+   }
+
+   public String[] names()
+   {
+      return names;
+   }
+
+   // Every agent in the initial population starts with the initial values.
+   public void start(int[] population)
+   {
+      for (int j = 0; j < numTraits; j++)
+         Arrays.fill(values[j], initial[j]);
+      System.arraycopy(population, 0, typeOf, 0, numAgents);
+   }
+
+   // The agent in slot k has a child, whose traits are its own plus a
+   // small random step, kept within each trait's range.
+   public void birth(int k)
+   {
+      if (numBirths == capacity)
+      {
+         capacity *= 2;
+         for (int j = 0; j < numTraits; j++)
+            born[j] = Arrays.copyOf(born[j], capacity);
+      }
+      for (int j = 0; j < numTraits; j++)
+      {
+         double value = values[j][k] + step[j] * random.nextGaussian();
+         born[j][numBirths] = Math.min(Math.max(value, min[j]), max[j]);
+      }
+      numBirths++;
+   }
+
+   // Ends the generation. Each slot of the new population takes the
+   // values of the survivor or newborn that Succession chose for it, or
+   // the initial values for a fresh agent. A mutant keeps its traits.
+   public void next(int[] population, int[] source)
+   {
+      // Copy the values one trait at a time.
+      for (int j = 0; j < numTraits; j++)
+      {
+         double[] from = values[j], to = next[j], babies = born[j];
+         for (int k = 0; k < numAgents; k++)
+         {
+            int c = source[k];
+            to[k] = (c < 0) ? initial[j] : (c < numAgents) ? from[c] : babies[c - numAgents];
+         }
+      }
+
+      double[][] swap = values;
+      values = next;
+      next = swap;
+      System.arraycopy(population, 0, typeOf, 0, numAgents);
+      numBirths = 0;
+   }
+
+   // Returns the mean value of a trait among the agents of a type.
+   public double mean(int trait, int type)
+   {
+      double sum = 0;
+      int n = 0;
+      for (int k = 0; k < numAgents; k++)
+         if (typeOf[k] == type)
+         {
+            sum += values[trait][k];
+            n++;
+         }
+      return (n > 0) ? sum / n : Double.NaN;
+   }
+
+   // Counts the agents of a type in each of BINS equal bins of a trait's
+   // range.
+   public void histogram(int trait, int type, int[] bins)
+   {
+      Arrays.fill(bins, 0);
+      double scale = BINS / (max[trait] - min[trait]);
+      double[] v = values[trait];
+      for (int k = 0; k < numAgents; k++)
+         if (typeOf[k] == type)
+            bins[Math.min((int)((v[k] - min[trait]) * scale), BINS - 1)]++;
+   }
+
+   // Writes the header of a histogram file. Each row holds the counts of
+   // one type in each bin of one trait, from min to max.
+   public void writeHeader(PrintWriter out)
+   {
+      StringBuilder header = new StringBuilder("generation,trait,min,max,type");
+      for (int b = 0; b < BINS; b++)
+         header.append(",bin").append(b);
+      out.println(header);
+   }
+
+   // Writes the histogram of every trait for every type as CSV rows.
+   public void writeHistograms(PrintWriter out, int gen, String[] typeNames)
+   {
+      int[] bins = new int[BINS];
+      for (int j = 0; j < numTraits; j++)
+         for (int t = 0; t < numTypes; t++)
+         {
+            histogram(j, t, bins);
+            StringBuilder line = new StringBuilder();
+            line.append(gen).append(',').append(names[j]).append(',').append(min[j])
+               .append(',').append(max[j]).append(',').append(typeNames[t]);
+            for (int count : bins)
+               line.append(',').append(count);
+            out.println(line);
+         }
+   }
+}
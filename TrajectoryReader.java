@@ -0,0 +1,171 @@
+// FDT in an Evolutionary Environment
+// Reads trajectory files written by TrajectoryWriter through a memory map.
+// Any generation can be read by decoding only the chunk that contains it,
+// and reading generations in order decodes each one a single time.
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class TrajectoryReader
+{
+   private final MappedByteBuffer map;
+   private final int numTypes;
+   private final int chunkSize;
+   private final int generations;
+   private final long[] chunks;
+   // Events such as parameter changes, and the generations they apply from.
+   private final List<Integer> eventGenerations = new ArrayList<>();
+   private final List<String> events = new ArrayList<>();
+
+   // Decoder state: the counts of generation gen, and where the next
+   // generation starts. Lets sequential reads continue where they left off.
+   private final int[] counts;
+   private int gen = -1;
+   private int position;
+
+   public TrajectoryReader(Path file) throws IOException
+   {
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+      {
+         map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      }
+      // An empty or half-written file may be too short to hold even the
+      // header and the smallest (version 1) footer.
+      if (map.limit() < TrajectoryWriter.HEADER_SIZE + 20
+         || map.getInt(0) != TrajectoryWriter.MAGIC
+         || map.getInt(map.limit() - 4) != TrajectoryWriter.MAGIC)
+         throw new IOException(file + " is not a complete trajectory file");
+      int version = map.getInt(4);
+      if (version != 1 && version != TrajectoryWriter.VERSION)
+         throw new IOException(file + " has unsupported version " + version);
+      if (map.limit() < TrajectoryWriter.HEADER_SIZE + TrajectoryWriter.FOOTER_SIZE && version != 1)
+         throw new IOException(file + " is not a complete trajectory file");
+      numTypes = map.getInt(8);
+      chunkSize = map.getInt(12);
+
+      int footer = map.limit() - ((version == 1) ? 20 : TrajectoryWriter.FOOTER_SIZE);
+      generations = map.getInt(footer);
+      chunks = new long[map.getInt(footer + 4)];
+      int index = (int)map.getLong(footer + 8);
+      for (int i = 0; i < chunks.length; i++)
+         chunks[i] = map.getLong(index + 8 * i);
+      counts = new int[numTypes];
+
+      if (version == 1)
+         return;
+      int at = (int)map.getLong(footer + 16);
+      int numEvents = map.getInt(at);
+      at += 4;
+      for (int i = 0; i < numEvents; i++)
+      {
+         eventGenerations.add(map.getInt(at));
+         byte[] text = new byte[map.getInt(at + 4)];
+         map.get(at + 8, text);
+         events.add(new String(text, StandardCharsets.UTF_8));
+         at += 8 + text.length;
+      }
+   }
+
+   public int generations()
+   {
+      return generations;
+   }
+
+   public int numTypes()
+   {
+      return numTypes;
+   }
+
+   public List<String> events()
+   {
+      return events;
+   }
+
+   // The generation that the i-th event applies from.
+   public int eventGeneration(int i)
+   {
+      return eventGenerations.get(i);
+   }
+
+   // Reads an unsigned varint at the current position.
+   private int readVarint()
+   {
+      int value = 0, shift = 0, b;
+      do
+      {
+         b = map.get(position++);
+         value |= (b & 0x7F) << shift;
+         shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+   }
+
+   // Copies the type counts of generation g into out.
+   public void counts(int g, int[] out)
+   {
+      if (g < 0 || g >= generations)
+         throw new IndexOutOfBoundsException("Generation " + g + " of " + generations);
+      // Jump to the start of g's chunk unless we can keep decoding from here.
+      if (gen < 0 || g < gen || g / chunkSize != gen / chunkSize)
+      {
+         position = (int)chunks[g / chunkSize];
+         gen = g - g % chunkSize;
+         for (int i = 0; i < numTypes; i++)
+            counts[i] = readVarint();
+      }
+      while (gen < g)
+      {
+         for (int i = 0; i < numTypes; i++)
+         {
+            int delta = readVarint();
+            counts[i] += (delta >>> 1) ^ -(delta & 1);
+         }
+         gen++;
+      }
+      System.arraycopy(counts, 0, out, 0, numTypes);
+   }
+
+   public int[] counts(int g)
+   {
+      int[] out = new int[numTypes];
+      counts(g, out);
+      return out;
+   }
+
+   // Usage: java TrajectoryReader <file> [generation]
+   // Prints the counts of one generation, or a summary of the whole file.
+   public static void main(String[] args) throws IOException
+   {
+      Path file = Paths.get(args[0]);
+      TrajectoryReader reader = new TrajectoryReader(file);
+      if (args.length > 1)
+      {
+         int g = Integer.parseInt(args[1]);
+         System.out.println("Generation " + g + ": "
+            + Arrays.toString(reader.counts(g)));
+         return;
+      }
+
+      int[] counts = new int[reader.numTypes()];
+      double[] meanCounts = new double[reader.numTypes()];
+      for (int g = 0; g < reader.generations(); g++)
+      {
+         reader.counts(g, counts);
+         for (int i = 0; i < counts.length; i++)
+            meanCounts[i] += (double)counts[i] / reader.generations();
+      }
+      long raw = 8L * reader.numTypes() * reader.generations();
+      System.out.println("Generations: " + reader.generations());
+      System.out.println("Final counts: " + Arrays.toString(counts));
+      System.out.println("Mean counts: " + Arrays.toString(meanCounts));
+      for (int i = 0; i < reader.events().size(); i++)
+         System.out.println("From generation " + reader.eventGeneration(i) + ": "
+            + reader.events().get(i));
+      System.out.println("Size: " + Files.size(file) + " bytes ("
+         + String.format("%.1f", (double)raw / Files.size(file)) + "x smaller than doubles)");
+   }
+}
@@ -0,0 +1,131 @@
+// FDT in an Evolutionary Environment
+// Writes a compressed trajectory file: the number of agents of each type
+// after every generation, delta-encoded and varint-packed in chunks.
+//
+// File layout (big-endian):
+//    header  magic "FDTT", version, number of types, generations per chunk
+//    chunks  the first generation of a chunk holds the counts themselves,
+//            every later one the zigzag-encoded change since the previous
+//    events  the number of events, then for each the generation it applies
+//            from and its UTF-8 text (such as a parameter change)
+//    index   the file offset of each chunk
+//    footer  generations, chunks, index offset, events offset, magic
+//
+// Version 1 files have no events, and no events offset in the footer.
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+public class TrajectoryWriter
+{
+   static final int MAGIC = 0x46445454; // "FDTT"
+   static final int VERSION = 2;
+   static final int CHUNK_SIZE = 1024; // generations per chunk
+   static final int HEADER_SIZE = 16;
+   static final int FOOTER_SIZE = 28;
+
+   private final DataOutputStream out;
+   private final int numTypes;
+   private final int[] previous;
+   private long[] chunks = new long[16];
+   private long offset = HEADER_SIZE;
+   private int generations = 0;
+   private final List<Integer> eventGenerations = new ArrayList<>();
+   private final List<String> events = new ArrayList<>();
+
+   public TrajectoryWriter(Path file, int numTypes) throws IOException
+   {
+      this.numTypes = numTypes;
+      this.previous = new int[numTypes];
+      out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(numTypes);
+      out.writeInt(CHUNK_SIZE);
+   }
+
+   // Opens the file named by "--trajectory <file>", or returns null if
+   // no trajectory was requested.
+   public static TrajectoryWriter open(String[] args, int numTypes) throws IOException
+   {
+      String file = Evolution.option(args, "--trajectory");
+      return (file == null) ? null : new TrajectoryWriter(Paths.get(file), numTypes);
+   }
+
+   // Maps signed deltas onto unsigned ints so that small changes in
+   // either direction take a single byte.
+   static int zigzag(int value)
+   {
+      return (value << 1) ^ (value >> 31);
+   }
+
+   // Writes an unsigned int in 7-bit groups, low bits first.
+   private void writeVarint(int value) throws IOException
+   {
+      while ((value & ~0x7F) != 0)
+      {
+         out.write((value & 0x7F) | 0x80);
+         value >>>= 7;
+         offset++;
+      }
+      out.write(value);
+      offset++;
+   }
+
+   // Appends the type counts of the next generation.
+   public void write(int[] counts) throws IOException
+   {
+      boolean start = generations % CHUNK_SIZE == 0;
+      if (start)
+      {
+         int chunk = generations / CHUNK_SIZE;
+         if (chunk == chunks.length)
+            chunks = Arrays.copyOf(chunks, 2 * chunks.length);
+         chunks[chunk] = offset;
+      }
+      for (int i = 0; i < numTypes; i++)
+      {
+         writeVarint(start ? counts[i] : zigzag(counts[i] - previous[i]));
+         previous[i] = counts[i];
+      }
+      generations++;
+   }
+
+   // Records an event, such as a parameter change, that applies from the
+   // next generation written on.
+   public void event(String text)
+   {
+      eventGenerations.add(generations);
+      events.add(text);
+   }
+
+   // Writes the events, chunk index and footer. The file is unreadable
+   // without them.
+   public void close() throws IOException
+   {
+      long eventsOffset = offset;
+      out.writeInt(events.size());
+      offset += 4;
+      for (int i = 0; i < events.size(); i++)
+      {
+         byte[] text = events.get(i).getBytes(StandardCharsets.UTF_8);
+         out.writeInt(eventGenerations.get(i));
+         out.writeInt(text.length);
+         out.write(text);
+         offset += 8 + text.length;
+      }
+
+      int numChunks = (generations + CHUNK_SIZE - 1) / CHUNK_SIZE;
+      long index = offset;
+      for (int i = 0; i < numChunks; i++)
+         out.writeLong(chunks[i]);
+      out.writeInt(generations);
+      out.writeInt(numChunks);
+      out.writeLong(index);
+      out.writeLong(eventsOffset);
+      out.writeInt(MAGIC);
+      out.close();
+   }
+}
@@ -0,0 +1,136 @@
+// FDT in an Evolutionary Environment
+// Weighted random selection backed by a Fenwick (binary indexed) tree.
+// Unlike RandomCollection, weights can be changed after the fact, so an
+// item can be drawn and removed in O(log n). This gives exact selection
+// without replacement: no item is drawn twice, and no retries are needed.
+
+import java.util.*;
+
+class WeightedSampler
+{
+   private final double[] tree; // 1-based partial sums
+   private final double[] weights;
+   private final SplittableRandom random;
+   private int size = 0;
+   private int mask = 0; // highest power of two <= size
+   private int positive = 0; // number of items with weight > 0
+
+   public WeightedSampler(int capacity, SplittableRandom random)
+   {
+      tree = new double[capacity + 1];
+      weights = new double[capacity];
+      this.random = random;
+   }
+
+   // Replaces the contents with the first n weights, in O(n).
+   // Negative weights are treated as zero.
+   public void build(double[] w, int n)
+   {
+      size = n;
+      mask = Integer.highestOneBit(Math.max(n, 1));
+      positive = 0;
+      tree[0] = 0;
+      for (int i = 0; i < n; i++)
+      {
+         weights[i] = Math.max(w[i], 0);
+         tree[i + 1] = weights[i];
+         if (weights[i] > 0)
+            positive++;
+      }
+      rebuild();
+   }
+
+   // Replaces the contents with n items of equal weight.
+   public void fill(int n)
+   {
+      size = n;
+      mask = Integer.highestOneBit(Math.max(n, 1));
+      positive = n;
+      Arrays.fill(weights, 0, n, 1.0);
+      Arrays.fill(tree, 1, n + 1, 1.0);
+      rebuild();
+   }
+
+   // Turns the raw weights in tree[1..size] into partial sums.
+   private void rebuild()
+   {
+      for (int i = 1; i <= size; i++)
+      {
+         int j = i + (i & -i);
+         if (j <= size)
+            tree[j] += tree[i];
+      }
+   }
+
+   public double weight(int i)
+   {
+      return weights[i];
+   }
+
+   // Changes the weight of item i.
+   public void set(int i, double weight)
+   {
+      weight = Math.max(weight, 0);
+      if (weights[i] > 0)
+         positive--;
+      if (weight > 0)
+         positive++;
+      double delta = weight - weights[i];
+      weights[i] = weight;
+      for (int j = i + 1; j <= size; j += j & -j)
+         tree[j] += delta;
+   }
+
+   // Returns the sum of all weights.
+   public double total()
+   {
+      double sum = 0;
+      for (int j = size; j > 0; j -= j & -j)
+         sum += tree[j];
+      return sum;
+   }
+
+   // Returns the number of items that can still be drawn.
+   public int remaining()
+   {
+      return positive;
+   }
+
+   // Returns a random item, with probability proportional to its weight.
+   public int draw()
+   {
+      if (positive == 0)
+         throw new IllegalStateException("No items left to draw");
+      for (int attempt = 0; ; attempt++)
+      {
+         // Repeated updates leave rounding error in the partial sums, which
+         // can land a draw on an item of zero weight. Rebuilding clears it.
+         if (attempt == 3)
+         {
+            System.arraycopy(weights, 0, tree, 1, size);
+            rebuild();
+         }
+         double value = random.nextDouble() * total();
+         int pos = 0;
+         for (int step = mask; step > 0; step >>= 1)
+         {
+            int next = pos + step;
+            if (next <= size && tree[next] <= value)
+            {
+               pos = next;
+               value -= tree[next];
+            }
+         }
+         if (pos < size && weights[pos] > 0)
+            return pos;
+      }
+   }
+
+   // Draws a random item and removes it, so it cannot be drawn again.
+   public int drawAndRemove()
+   {
+      int i = draw();
+      set(i, 0);
+      return i;
+   }
+}